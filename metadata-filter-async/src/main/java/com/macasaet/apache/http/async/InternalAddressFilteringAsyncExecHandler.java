@@ -0,0 +1,333 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http.async;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.async.AsyncExecCallback;
+import org.apache.hc.client5.http.async.AsyncExecChain;
+import org.apache.hc.client5.http.async.AsyncExecChainHandler;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+
+import com.macasaet.apache.http.FilterEngine;
+import com.macasaet.apache.http.FilterListener;
+import com.macasaet.apache.http.FilterPolicy;
+import com.macasaet.apache.http.Verdict;
+import com.macasaet.apache.http.VerdictCache;
+
+/**
+ * <p>The HttpClient 5.x asynchronous counterpart of
+ * <code>InternalAddressFilteringRequestInterceptor</code>. It blocks
+ * access to internal metadata API hosts as well as link local addresses
+ * for {@link org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient
+ * asynchronous clients}, including HTTP/2 clients that multiplex many
+ * requests over one connection.</p>
+ *
+ * <p>Host names are resolved on a dedicated {@link Executor} and the
+ * verdict is delivered through a {@link CompletableFuture}, so the I/O
+ * reactor threads never block on DNS. Requests whose verdict is already
+ * known, because the host is trusted or blocked by name, is an IP
+ * address, or is in the {@link VerdictCache}, are decided on the
+ * calling thread.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class InternalAddressFilteringAsyncExecHandler implements AsyncExecChainHandler {
+
+    public static final String name = "metadata-filter";
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final FilterEngine engine;
+    private final Executor executor;
+
+    public InternalAddressFilteringAsyncExecHandler() {
+        this(SystemDefaultDnsResolver.INSTANCE, DefaultExecutorHolder.executor, null, FilterPolicy::defaultPolicy);
+    }
+
+    /**
+     * @param dnsResolver the resolver used to look up the addresses of
+     *                    target hosts
+     * @param executor the executor on which blocking lookups are run
+     * @param verdictCache a cache for allow/deny decisions or
+     *                     <code>null</code> to evaluate every request
+     * @param policy the source of the current rules, consulted on every
+     *               request
+     */
+    protected InternalAddressFilteringAsyncExecHandler(final DnsResolver dnsResolver, final Executor executor,
+            final VerdictCache verdictCache, final Supplier<FilterPolicy> policy) {
+        this(createEngine(dnsResolver, verdictCache, policy), executor);
+    }
+
+    /**
+     * @param engine the engine that decides which hosts may be
+     *               contacted, which may be shared with other clients
+     * @param executor the executor on which blocking lookups are run
+     */
+    protected InternalAddressFilteringAsyncExecHandler(final FilterEngine engine, final Executor executor) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine must not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        this.engine = engine;
+        this.executor = executor;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    /**
+     * Install this filter immediately before the connection is
+     * established so that redirects and retries are checked as well.
+     *
+     * @param builder the builder for the client to protect
+     */
+    public void install(final HttpAsyncClientBuilder builder) {
+        builder.addExecInterceptorBefore(ChainElement.CONNECT.name(), name, this);
+    }
+
+    /**
+     * Install this filter immediately before the connection is
+     * established so that redirects and retries are checked as well.
+     *
+     * @param builder the builder for the HTTP/2 client to protect
+     */
+    public void install(final H2AsyncClientBuilder builder) {
+        builder.addExecInterceptorBefore(ChainElement.CONNECT.name(), name, this);
+    }
+
+    public void execute(final HttpRequest request, final AsyncEntityProducer entityProducer,
+            final AsyncExecChain.Scope scope, final AsyncExecChain chain, final AsyncExecCallback asyncExecCallback)
+            throws HttpException, IOException {
+        final HttpHost host = scope.route.getTargetHost();
+        isPermitted(host).whenComplete((permitted, failure) -> {
+            if (failure != null) {
+                asyncExecCallback.failed(unwrap(failure));
+                return;
+            }
+            if (!permitted) {
+                log.warn("Blocking connection to: " + host);
+                asyncExecCallback.failed(new HttpException("Blocked host."));
+                return;
+            }
+            try {
+                chain.proceed(request, entityProducer, scope, asyncExecCallback);
+            } catch (final HttpException | IOException | RuntimeException e) {
+                asyncExecCallback.failed(e);
+            }
+        });
+    }
+
+    /**
+     * @param host the target of a request
+     * @return a future that completes with <code>true</code> if the host
+     *         may be contacted, <code>false</code> if it is blocked, or
+     *         exceptionally if its name cannot be resolved
+     */
+    public CompletableFuture<Boolean> isPermitted(final HttpHost host) {
+        final long start = engine.getListener() != null ? System.nanoTime() : 0;
+        // read the policy once so that the whole decision uses a single snapshot
+        final FilterPolicy currentPolicy = engine.getPolicy();
+        final String hostName = host.getHostName();
+        final Verdict verdict = engine.evaluateName(currentPolicy, hostName, host.getAddress());
+        if (verdict != null) {
+            report(hostName, verdict, start);
+            return CompletableFuture.completedFuture(verdict == Verdict.ALLOWED);
+        }
+        final CompletableFuture<Boolean> retval = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                final Verdict resolved;
+                try {
+                    // resolution failures are never cached
+                    resolved = engine.evaluateAddresses(currentPolicy, hostName, engine.resolve(hostName));
+                } catch (final IOException | RuntimeException e) {
+                    report(hostName, Verdict.RESOLUTION_FAILURE, start);
+                    retval.completeExceptionally(e);
+                    return;
+                }
+                // report before completing, as completion runs the rest of the request
+                report(hostName, resolved, start);
+                retval.complete(resolved == Verdict.ALLOWED);
+            });
+        } catch (final RejectedExecutionException ree) {
+            retval.completeExceptionally(ree);
+        }
+        return retval;
+    }
+
+    /**
+     * @return the engine that decides which hosts may be contacted
+     */
+    public FilterEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the verdict cache or <code>null</code> if verdicts are not
+     *         cached
+     */
+    public VerdictCache getVerdictCache() {
+        return engine.getVerdictCache();
+    }
+
+    protected void report(final String hostName, final Verdict verdict, final long start) {
+        final FilterListener listener = engine.getListener();
+        if (listener != null) {
+            listener.onDecision(hostName, verdict, System.nanoTime() - start);
+        }
+    }
+
+    protected static FilterEngine createEngine(final DnsResolver dnsResolver, final VerdictCache verdictCache,
+            final Supplier<FilterPolicy> policy) {
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("dnsResolver must not be null");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        return FilterEngine.custom().setResolver(dnsResolver::resolve).setVerdictCache(verdictCache).setPolicy(policy)
+                .build();
+    }
+
+    protected Exception unwrap(final Throwable failure) {
+        final Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        return cause instanceof Exception ? (Exception) cause : new CompletionException(cause);
+    }
+
+    /**
+     * Lazily creates the default lookup executor so that it is only
+     * started if it is used.
+     */
+    protected static class DefaultExecutorHolder {
+        private static final int threads = 16;
+        static final ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+    }
+
+    protected static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread retval = new Thread(runnable, "metadata-filter-resolver-" + counter.incrementAndGet());
+            retval.setDaemon(true);
+            return retval;
+        }
+    }
+
+    /**
+     * Builder for {@link InternalAddressFilteringAsyncExecHandler}
+     * instances.
+     */
+    public static class Builder {
+
+        private FilterEngine engine;
+        private DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+        private Executor executor;
+        private VerdictCache verdictCache;
+        private Supplier<FilterPolicy> policy = FilterPolicy::defaultPolicy;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param engine an engine shared with other clients, which takes
+         *               precedence over
+         *               {@link #setDnsResolver(DnsResolver)},
+         *               {@link #setVerdictCache(VerdictCache)}, and
+         *               {@link #setPolicy(Supplier)}. Its resolver is
+         *               only ever invoked on the executor.
+         * @return this builder
+         */
+        public Builder setEngine(final FilterEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * @param dnsResolver the resolver used to look up the addresses
+         *                    of target hosts
+         * @return this builder
+         */
+        public Builder setDnsResolver(final DnsResolver dnsResolver) {
+            this.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        /**
+         * @param executor the executor on which blocking lookups are run.
+         *                 This must not be an I/O reactor thread. By
+         *                 default, a shared pool of 16 daemon threads is
+         *                 used.
+         * @return this builder
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param verdictCache a cache for allow/deny decisions or
+         *                     <code>null</code> to evaluate every request
+         * @return this builder
+         */
+        public Builder setVerdictCache(final VerdictCache verdictCache) {
+            this.verdictCache = verdictCache;
+            return this;
+        }
+
+        /**
+         * @param policy the source of the rules to apply, consulted on
+         *               every request
+         * @return this builder
+         */
+        public Builder setPolicy(final Supplier<FilterPolicy> policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        public InternalAddressFilteringAsyncExecHandler build() {
+            return new InternalAddressFilteringAsyncExecHandler(
+                    engine != null ? engine : createEngine(dnsResolver, verdictCache, policy),
+                    executor != null ? executor : DefaultExecutorHolder.executor);
+        }
+    }
+
+}
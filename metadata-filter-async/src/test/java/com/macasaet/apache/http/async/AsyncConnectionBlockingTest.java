@@ -0,0 +1,171 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.macasaet.apache.http.async;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.InMemoryDnsResolver;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.HttpException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.macasaet.apache.http.AddressRangeTrie;
+import com.macasaet.apache.http.FilterPolicy;
+import com.macasaet.apache.http.HostNameTrie;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exercises {@link InternalAddressFilteringAsyncExecHandler} through
+ * real asynchronous clients.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AsyncConnectionBlockingTest {
+
+    private final AtomicReference<String> resolverThread = new AtomicReference<>();
+    private final InMemoryDnsResolver hosts = new InMemoryDnsResolver() {
+        public InetAddress[] resolve(final String host) throws UnknownHostException {
+            resolverThread.compareAndSet(null, Thread.currentThread().getName());
+            return super.resolve(host);
+        }
+    };
+    // the test server listens on the loopback interface, so it must be exempted
+    private final FilterPolicy policy = new FilterPolicy(
+            HostNameTrie.custom().addAll(FilterPolicy.defaultBlockedHosts).build(),
+            AddressRangeTrie.custom().allow("127.0.0.1").build());
+    private final InternalAddressFilteringAsyncExecHandler handler = InternalAddressFilteringAsyncExecHandler
+            .custom().setDnsResolver(hosts).setPolicy(() -> policy).build();
+
+    private HttpServer server;
+    private CloseableHttpAsyncClient client;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        // unlike the system resolver, the stub does not parse literals
+        hosts.add("169.254.169.254", InetAddress.getByName("169.254.169.254"));
+        hosts.add("metadata.example", InetAddress.getByName("169.254.169.254"));
+        hosts.add("allowed.example", InetAddress.getByName("127.0.0.1"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", exchange -> {
+            final byte[] body = "ok".getBytes(UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        });
+        server.start();
+
+        final HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create().setDnsResolver(hosts).build());
+        handler.install(builder);
+        client = builder.build();
+        client.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "http://169.254.169.254/latest/meta-data/",
+            "http://metadata.google.internal/computeMetadata/v1/instance/disks/0/",
+            "http://metadata.example/latest/meta-data/",
+    })
+    public final void verifyRequestToBannedHostIsBlocked(final String url) {
+        // given
+        final SimpleHttpRequest request = SimpleRequestBuilder.get(url).build();
+
+        // when / then
+        final ExecutionException result = assertThrows(ExecutionException.class,
+                () -> client.execute(request, null).get(10, TimeUnit.SECONDS));
+        assertTrue(result.getCause() instanceof HttpException);
+        assertEquals("Blocked host.", result.getCause().getMessage());
+    }
+
+    @Test
+    public final void verifyAllowedHostIsReachable() throws Exception {
+        // given
+        final SimpleHttpRequest request = SimpleRequestBuilder
+                .get("http://allowed.example:" + server.getAddress().getPort() + "/").build();
+
+        // when
+        final SimpleHttpResponse result = client.execute(request, null).get(10, TimeUnit.SECONDS);
+
+        // then
+        assertEquals(200, result.getCode());
+        assertEquals("ok", result.getBodyText());
+    }
+
+    @Test
+    public final void verifyLookupIsNotPerformedOnCallingThread() throws Exception {
+        // when
+        final boolean result = handler.isPermitted(new org.apache.hc.core5.http.HttpHost("metadata.example"))
+                .get(10, TimeUnit.SECONDS);
+
+        // then
+        assertFalse(result);
+        assertNotNull(resolverThread.get());
+        assertTrue(resolverThread.get().startsWith("metadata-filter-resolver-"));
+    }
+
+    @Test
+    public final void verifyHttp2ClientIsProtected() throws IOException {
+        // given
+        final H2AsyncClientBuilder builder = HttpAsyncClients.customHttp2();
+        handler.install(builder);
+        try (CloseableHttpAsyncClient h2Client = builder.build()) {
+            h2Client.start();
+            final SimpleHttpRequest request = SimpleRequestBuilder.get("http://169.254.169.254/latest/meta-data/")
+                    .build();
+
+            // when / then
+            final ExecutionException result = assertThrows(ExecutionException.class,
+                    () -> h2Client.execute(request, null).get(10, TimeUnit.SECONDS));
+            assertEquals("Blocked host.", result.getCause().getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Runs the benchmarks once for each thread count from 1 up to the
+ * number of available processors, doubling each time, and reports the
+ * allocation rate alongside the throughput. Standard JMH options are
+ * accepted; an explicit <code>-t</code> runs a single thread count and an
+ * explicit <code>-prof</code> replaces the allocation profiler.</p>
+ *
+ * <pre>java -jar metadata-filter-benchmarks/target/benchmarks.jar [JMH options]</pre>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class BenchmarkRunner {
+
+    public static void main(final String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            try {
+                Main.main(args);
+            } catch (final Exception e) {
+                throw new RunnerException(e);
+            }
+            return;
+        }
+        final List<Integer> threadCounts = commandLine.getThreads().hasValue()
+                ? Collections.singletonList(commandLine.getThreads().get())
+                : defaultThreadCounts();
+        for (final int threads : threadCounts) {
+            final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).threads(threads);
+            if (commandLine.getProfilers().isEmpty()) {
+                options.addProfiler(GCProfiler.class);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+
+    protected static List<Integer> defaultThreadCounts() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final List<Integer> retval = new ArrayList<>();
+        for (int threads = 1; threads < processors; threads <<= 1) {
+            retval.add(threads);
+        }
+        retval.add(processors);
+        return retval;
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures request latency when many threads check the same host name
+ * at once and the verdict is not cached, with and without
+ * {@link CoalescingDnsResolver}. The stub DNS server takes a millisecond
+ * per query and answers a limited number of queries at a time, so
+ * duplicate queries queue up behind one another.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog")
+public class CoalescingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Fixture {
+
+        private static final long queryNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final int serverConcurrency = 4;
+
+        @Param({ "false", "true" })
+        public boolean coalesce;
+
+        InternalAddressFilteringRequestInterceptor interceptor;
+        HttpRequest request;
+        HttpContext context;
+
+        @Setup(Level.Trial)
+        public void setUp() throws UnknownHostException {
+            final InetAddress[] addresses = new InetAddress[] { InetAddress.getByName("203.0.113.10") };
+            final Semaphore server = new Semaphore(serverConcurrency);
+            final DnsResolver slowServer = host -> {
+                server.acquireUninterruptibly();
+                try {
+                    // parking may return early, e.g. after being woken by a future
+                    final long deadline = System.nanoTime() + queryNanos;
+                    for (long remaining = queryNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+                        LockSupport.parkNanos(remaining);
+                    }
+                    return addresses.clone();
+                } finally {
+                    server.release();
+                }
+            };
+            interceptor = InternalAddressFilteringRequestInterceptor.custom()
+                    .setDnsResolver(coalesce ? new CoalescingDnsResolver(slowServer) : slowServer).build();
+            request = new BasicHttpRequest("GET", "/");
+            context = new BasicHttpContext();
+            context.setAttribute(HTTP_TARGET_HOST, new HttpHost("popular.example"));
+        }
+    }
+
+    @Benchmark
+    public HttpRequest process(final Fixture fixture) throws HttpException, IOException {
+        fixture.interceptor.process(fixture.request, fixture.context);
+        return fixture.request;
+    }
+
+}
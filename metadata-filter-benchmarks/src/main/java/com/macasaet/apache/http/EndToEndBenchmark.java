@@ -0,0 +1,232 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.client.protocol.RequestClientConnControl;
+import org.apache.http.client.protocol.RequestDefaultHeaders;
+import org.apache.http.client.protocol.RequestExpectContinue;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.client.protocol.ResponseProcessCookies;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the end-to-end cost of the filter by driving a real
+ * {@link CloseableHttpClient} against an HTTP server embedded in the
+ * benchmark. The target's host name is resolved to the loopback
+ * interface by a {@link StubDnsResolver}, which is exempted from the
+ * filter, so every variant makes the same requests over the same pooled
+ * keep-alive connections and differs only in how the filter is
+ * installed.
+ *
+ * <p>{@link #throughput(Fixture)} reports requests per second and
+ * {@link #latency(Fixture)} reports the latency distribution, including
+ * the p50, p99, and p999 percentiles. Compare each integration against
+ * {@link Integration#NONE} to obtain the filter's overhead:</p>
+ *
+ * <pre>java -jar metadata-filter-benchmarks/target/benchmarks.jar EndToEndBenchmark -t 16</pre>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog")
+public class EndToEndBenchmark {
+
+    /**
+     * How the filter is added to the client.
+     */
+    public enum Integration {
+        /**
+         * No filter, the baseline.
+         */
+        NONE,
+        /**
+         * {@link InternalAddressFilteringRequestInterceptor#install(HttpClientBuilder)}
+         */
+        INSTALL,
+        /**
+         * {@link InternalAddressFilteringRequestInterceptor#installWithResolver(HttpClientBuilder)}
+         */
+        INSTALL_WITH_RESOLVER,
+        /**
+         * {@link InternalAddressFilteringRequestInterceptor#wrap(org.apache.http.conn.HttpClientConnectionManager)}
+         */
+        WRAP,
+        /**
+         * {@link InternalAddressFilteringRequestInterceptor#wrap(HttpProcessor)}
+         * around a processor with the same interceptors the client uses
+         * by default
+         */
+        WRAP_PROCESSOR,
+    }
+
+    /**
+     * One server and client, shared by all benchmark threads as they
+     * would be in an application.
+     */
+    @State(Scope.Benchmark)
+    public static class Fixture {
+
+        private static final String hostName = "service.example";
+        private static final int maxConnections = 1024;
+        private static final byte[] body = new byte[256];
+
+        @Param
+        public Integration integration;
+
+        HttpServer server;
+        CloseableHttpClient client;
+        HttpHost target;
+        final ResponseHandler<Integer> handler = response -> {
+            EntityUtils.consume(response.getEntity());
+            final int retval = response.getStatusLine().getStatusCode();
+            if (retval != HttpStatus.SC_OK) {
+                throw new IllegalStateException("Unexpected response: " + response.getStatusLine());
+            }
+            return retval;
+        };
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+            server = ServerBootstrap.bootstrap()
+                    .setLocalAddress(loopback)
+                    .setListenerPort(0)
+                    .registerHandler("*", (request, response, context) -> {
+                        response.setStatusCode(HttpStatus.SC_OK);
+                        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+                    })
+                    .create();
+            server.start();
+            target = new HttpHost(hostName, server.getLocalPort());
+
+            final StubDnsResolver resolver = new StubDnsResolver().add(hostName, loopback.getHostAddress());
+            // the server listens on the loopback interface, so it must be exempted
+            final InternalAddressFilteringRequestInterceptor filter = InternalAddressFilteringRequestInterceptor
+                    .custom()
+                    .setDnsResolver(resolver)
+                    .setAddressRanges(AddressRangeTrie.custom().allow(loopback.getHostAddress()).build())
+                    .build();
+            final HttpClientBuilder builder = HttpClientBuilder.create()
+                    .setDnsResolver(resolver)
+                    .setMaxConnTotal(maxConnections)
+                    .setMaxConnPerRoute(maxConnections);
+            switch (integration) {
+            case NONE:
+                break;
+            case INSTALL:
+                filter.install(builder);
+                break;
+            case INSTALL_WITH_RESOLVER:
+                filter.installWithResolver(builder);
+                break;
+            case WRAP:
+                final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                        RegistryBuilder.<ConnectionSocketFactory>create()
+                                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                                .build(),
+                        resolver);
+                connectionManager.setMaxTotal(maxConnections);
+                connectionManager.setDefaultMaxPerRoute(maxConnections);
+                builder.setConnectionManager(filter.wrap(connectionManager));
+                break;
+            case WRAP_PROCESSOR:
+                final HttpProcessor processor = HttpProcessorBuilder.create()
+                        .add(new RequestDefaultHeaders())
+                        .add(new RequestContent())
+                        .add(new RequestTargetHost())
+                        .add(new RequestClientConnControl())
+                        .add(new RequestUserAgent())
+                        .add(new RequestExpectContinue())
+                        .add(new RequestAddCookies())
+                        .add(new RequestAcceptEncoding())
+                        .add(new ResponseProcessCookies())
+                        .add(new ResponseContentEncoding())
+                        .build();
+                builder.setHttpProcessor(filter.wrap(processor));
+                break;
+            default:
+                throw new IllegalStateException("Unsupported integration: " + integration);
+            }
+            client = builder.build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            client.close();
+            server.shutdown(1, TimeUnit.SECONDS);
+        }
+
+        int execute() throws IOException {
+            return client.execute(target, new HttpGet("/"), handler);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int throughput(final Fixture fixture) throws IOException {
+        return fixture.execute();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency(final Fixture fixture) throws IOException {
+        return fixture.execute();
+    }
+
+}
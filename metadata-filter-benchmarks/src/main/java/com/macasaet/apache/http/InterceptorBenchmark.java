@@ -0,0 +1,168 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-request cost of
+ * {@link InternalAddressFilteringRequestInterceptor}. All names are
+ * resolved by a {@link StubDnsResolver} so that results are repeatable
+ * offline. Use {@link BenchmarkRunner} to repeat the measurements with
+ * an increasing number of threads and to report allocation rates.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dorg.apache.commons.logging.Log=org.apache.commons.logging.impl.NoOpLog")
+public class InterceptorBenchmark {
+
+    /**
+     * The shape of the request being filtered.
+     */
+    public enum Scenario {
+        /**
+         * The target is an IP address, which the resolver returns as-is.
+         */
+        IP_LITERAL,
+        /**
+         * The target is a host name whose verdict is in the
+         * {@link VerdictCache}.
+         */
+        CACHED_HOST_NAME,
+        /**
+         * The target is a blocked host name, so every request is
+         * rejected.
+         */
+        BLOCKED_HOST_NAME,
+        /**
+         * The target is a permitted host name checked against a large
+         * number of blocked host names.
+         */
+        LONG_BLOCKLIST,
+        /**
+         * The target is only available from the <code>Host</code> header.
+         */
+        HOST_HEADER_ONLY,
+    }
+
+    /**
+     * One filter and request, shared by all benchmark threads so that
+     * contention on shared structures is part of the measurement.
+     */
+    @State(Scope.Benchmark)
+    public static class Fixture {
+
+        private static final int longBlocklistSize = 10_000;
+
+        @Param
+        public Scenario scenario;
+
+        InternalAddressFilteringRequestInterceptor interceptor;
+        HttpRequest request;
+        HttpContext context;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, HttpException {
+            final StubDnsResolver resolver = new StubDnsResolver()
+                    .add("203.0.113.10", "203.0.113.10")
+                    .add("api.example.com", "203.0.113.10", "2001:db8::10");
+            final InternalAddressFilteringRequestInterceptor.Builder builder = InternalAddressFilteringRequestInterceptor
+                    .custom()
+                    .setDnsResolver(resolver);
+            request = new BasicHttpRequest("GET", "/");
+            context = new BasicHttpContext();
+            switch (scenario) {
+            case IP_LITERAL:
+                context.setAttribute(HTTP_TARGET_HOST, new HttpHost("203.0.113.10"));
+                break;
+            case CACHED_HOST_NAME:
+                builder.setVerdictCache(new VerdictCache(1024, 1, 1, TimeUnit.HOURS));
+                context.setAttribute(HTTP_TARGET_HOST, new HttpHost("api.example.com"));
+                break;
+            case BLOCKED_HOST_NAME:
+                context.setAttribute(HTTP_TARGET_HOST, new HttpHost("metadata.google.internal"));
+                break;
+            case LONG_BLOCKLIST:
+                final HostNameTrie.Builder blockedHosts = HostNameTrie.custom()
+                        .addAll(FilterPolicy.defaultBlockedHosts);
+                for (int i = 0; i < longBlocklistSize; i++) {
+                    blockedHosts.add("host-" + i + ".blocked.example");
+                }
+                builder.setBlockedHosts(blockedHosts.build());
+                context.setAttribute(HTTP_TARGET_HOST, new HttpHost("api.example.com"));
+                break;
+            case HOST_HEADER_ONLY:
+                request.addHeader("Host", "api.example.com:8443");
+                break;
+            default:
+                throw new IllegalStateException("Unsupported scenario: " + scenario);
+            }
+            interceptor = builder.build();
+            // populate the cache, if any, and fail fast on a misconfigured scenario
+            try {
+                interceptor.process(request, context);
+            } catch (final HttpException he) {
+                if (scenario != Scenario.BLOCKED_HOST_NAME) {
+                    throw he;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Object process(final Fixture fixture) throws IOException {
+        try {
+            fixture.interceptor.process(fixture.request, fixture.context);
+            return fixture.request;
+        } catch (final HttpException he) {
+            return he;
+        }
+    }
+
+    @Benchmark
+    public HttpHost getHost(final Fixture fixture) throws HttpException {
+        return fixture.interceptor.getHost(fixture.request, fixture.context);
+    }
+
+}
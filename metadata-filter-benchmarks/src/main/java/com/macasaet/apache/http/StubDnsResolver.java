@@ -0,0 +1,63 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.conn.DnsResolver;
+
+/**
+ * A {@link DnsResolver} backed by a fixed table so that benchmark results
+ * do not depend on the network or the operating system's resolver cache.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class StubDnsResolver implements DnsResolver {
+
+    private final Map<String, InetAddress[]> table = new HashMap<>();
+
+    /**
+     * @param hostName a host name or IP literal
+     * @param addresses IP literals that the host name resolves to
+     * @return this resolver
+     * @throws UnknownHostException if any of the addresses is not a
+     *                              valid IP literal
+     */
+    public StubDnsResolver add(final String hostName, final String... addresses) throws UnknownHostException {
+        final InetAddress[] resolved = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            // a literal is parsed without a lookup
+            resolved[i] = InetAddress.getByName(addresses[i]);
+        }
+        table.put(hostName.toLowerCase(Locale.ENGLISH), resolved);
+        return this;
+    }
+
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final InetAddress[] retval = table.get(host.toLowerCase(Locale.ENGLISH));
+        if (retval == null) {
+            throw new UnknownHostException(host);
+        }
+        return retval;
+    }
+
+}
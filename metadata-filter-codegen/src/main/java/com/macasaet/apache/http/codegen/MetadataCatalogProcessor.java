@@ -0,0 +1,388 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http.codegen;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * <p>Compiles the catalog of cloud metadata endpoints into a Java class
+ * containing pre-sorted lookup tables, so that the rules are available
+ * as soon as the class is loaded without reading or parsing any files at
+ * run time.</p>
+ *
+ * <p>The catalog is a text file with one entry per line. Each entry
+ * consists of the provider, the kind of entry (<code>host</code> or
+ * <code>address</code>), and the value, separated by white space.
+ * Addresses may be given in CIDR notation. Blank lines and everything
+ * following a <code>#</code> are ignored:</p>
+ *
+ * <pre>
+ * # provider  kind     value
+ * aws         address  fd00:ec2::254
+ * gcp         host     metadata.google.internal
+ * </pre>
+ *
+ * <p>The processor does not handle any annotations. It generates the
+ * table once per compilation when the <code>-Acom.macasaet.apache.http.catalog</code>
+ * option names a catalog file or the
+ * <code>-Acom.macasaet.apache.http.catalog.resource</code> option names a
+ * catalog on the class path, and does nothing otherwise. The name of the
+ * generated class can be changed with
+ * <code>-Acom.macasaet.apache.http.catalog.class</code>.</p>
+ *
+ * <p>The compiler plugin only recompiles a module when one of its sources
+ * or class path entries has changed, so a catalog that is read from a
+ * file is not regenerated when only the file changes. The catalog of
+ * this project is therefore a resource of this module, which is on the
+ * class path of the modules that use it.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class MetadataCatalogProcessor extends AbstractProcessor {
+
+    public static final String catalogOption = "com.macasaet.apache.http.catalog";
+    public static final String resourceOption = "com.macasaet.apache.http.catalog.resource";
+    public static final String classOption = "com.macasaet.apache.http.catalog.class";
+    public static final String defaultClassName = "com.macasaet.apache.http.MetadataEndpointTable";
+
+    private static final Pattern whitespace = Pattern.compile("\\s+");
+    private static final Pattern label = Pattern.compile("[a-z0-9]([a-z0-9-]{0,61}[a-z0-9])?");
+    private static final Pattern literal = Pattern
+            .compile("[0-9]{1,3}(\\.[0-9]{1,3}){3}|[0-9A-Fa-f.]*:[0-9A-Fa-f:.]*");
+
+    private boolean generated = false;
+
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    public Set<String> getSupportedOptions() {
+        return new TreeSet<>(Arrays.asList(catalogOption, resourceOption, classOption));
+    }
+
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        final String catalog = processingEnv.getOptions().get(catalogOption);
+        final String resource = processingEnv.getOptions().get(resourceOption);
+        if (generated || (catalog == null && resource == null) || roundEnv.processingOver()) {
+            return false;
+        }
+        generated = true;
+        final String className = processingEnv.getOptions().getOrDefault(classOption, defaultClassName);
+        final Path path = Paths.get(catalog != null ? catalog : resource);
+        try {
+            final List<String> lines = catalog != null ? Files.readAllLines(path, UTF_8) : readResource(resource);
+            final Catalog parsed = parse(path, lines);
+            try (Writer writer = processingEnv.getFiler().createSourceFile(className).openWriter()) {
+                writer.write(generate(className, path.getFileName().toString(), parsed));
+            }
+        } catch (final IOException | IllegalArgumentException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, e.getMessage());
+        }
+        // other processors may also process every type
+        return false;
+    }
+
+    /**
+     * @param name the name of a catalog on the class path
+     * @return the contents of the catalog
+     * @throws IOException if the catalog cannot be read
+     */
+    protected List<String> readResource(final String name) throws IOException {
+        final FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_PATH, "", name);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.openInputStream(), UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @param path the location of the catalog, for error messages
+     * @param lines the contents of the catalog
+     * @return the de-duplicated and sorted entries
+     * @throws IllegalArgumentException if an entry is not valid or
+     *                                  address ranges overlap
+     */
+    protected static Catalog parse(final Path path, final List<String> lines) {
+        final Catalog retval = new Catalog();
+        for (int i = 0; i < lines.size(); i++) {
+            final String location = path + ":" + (i + 1) + ": ";
+            String line = lines.get(i);
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] fields = whitespace.split(line);
+            if (fields.length != 3) {
+                throw new IllegalArgumentException(location + "expected provider, kind, and value: " + line);
+            }
+            final String provider = fields[0].toLowerCase(Locale.ENGLISH);
+            if ("host".equals(fields[1])) {
+                retval.add(retval.hostNames, parseHostName(location, fields[2]), provider);
+            } else if ("address".equals(fields[1])) {
+                final Range range = parseRange(location, fields[2]);
+                retval.add(range.ipv4 ? retval.ipv4Ranges : retval.ipv6Ranges, range, provider);
+            } else {
+                throw new IllegalArgumentException(location + "unknown kind: " + fields[1]);
+            }
+        }
+        checkOverlaps(path, retval.ipv4Ranges.keySet());
+        checkOverlaps(path, retval.ipv6Ranges.keySet());
+        return retval;
+    }
+
+    protected static String parseHostName(final String location, final String value) {
+        String retval = value.toLowerCase(Locale.ENGLISH);
+        if (retval.endsWith(".")) {
+            retval = retval.substring(0, retval.length() - 1);
+        }
+        if (retval.isEmpty() || retval.length() > 253) {
+            throw new IllegalArgumentException(location + "invalid host name: " + value);
+        }
+        for (final String part : retval.split("\\.", -1)) {
+            if (!label.matcher(part).matches()) {
+                throw new IllegalArgumentException(location + "invalid host name: " + value);
+            }
+        }
+        return retval;
+    }
+
+    protected static Range parseRange(final String location, final String value) {
+        final int slash = value.indexOf('/');
+        final String address = slash < 0 ? value : value.substring(0, slash);
+        // only literals are accepted so that the build never queries DNS
+        if (!literal.matcher(address).matches()) {
+            throw new IllegalArgumentException(location + "invalid address: " + value);
+        }
+        final byte[] bytes;
+        try {
+            final InetAddress parsed = InetAddress.getByName(address);
+            if (parsed instanceof Inet4Address && address.indexOf(':') >= 0) {
+                throw new IllegalArgumentException(location + "use the IPv4 form of: " + value);
+            }
+            bytes = parsed.getAddress();
+        } catch (final UnknownHostException uhe) {
+            throw new IllegalArgumentException(location + "invalid address: " + value, uhe);
+        }
+        final int bits = bytes.length * 8;
+        final int prefixLength;
+        try {
+            prefixLength = slash < 0 ? bits : Integer.parseInt(value.substring(slash + 1));
+        } catch (final NumberFormatException nfe) {
+            throw new IllegalArgumentException(location + "invalid prefix length: " + value, nfe);
+        }
+        if (prefixLength < 0 || prefixLength > bits) {
+            throw new IllegalArgumentException(location + "invalid prefix length: " + value);
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length == 4) {
+            final long mask = prefixLength == 0 ? 0L : (0xFFFFFFFFL << (32 - prefixLength)) & 0xFFFFFFFFL;
+            return new Range(true, 0L, (buffer.getInt() & 0xFFFFFFFFL) & mask, prefixLength);
+        }
+        final long high = buffer.getLong();
+        final long low = buffer.getLong();
+        return new Range(false, high & mask(prefixLength), low & mask(prefixLength - 64), prefixLength);
+    }
+
+    protected static void checkOverlaps(final Path path, final Set<Range> ranges) {
+        Range previous = null;
+        for (final Range range : ranges) {
+            // ranges are sorted by their first address, so only neighbours can overlap
+            if (previous != null && previous.contains(range)) {
+                throw new IllegalArgumentException(path + ": overlapping address ranges: " + previous + ", " + range);
+            }
+            previous = range;
+        }
+    }
+
+    protected static String generate(final String className, final String source, final Catalog catalog) {
+        final int dot = className.lastIndexOf('.');
+        final StringBuilder retval = new StringBuilder();
+        if (dot > 0) {
+            retval.append("package ").append(className, 0, dot).append(";\n\n");
+        }
+        retval.append("/**\n");
+        retval.append(" * Cloud metadata endpoints, generated from ").append(source).append(" by\n");
+        retval.append(" * ").append(MetadataCatalogProcessor.class.getName()).append(". Do not edit.\n");
+        retval.append(" */\n");
+        retval.append("final class ").append(className.substring(dot + 1)).append(" {\n\n");
+
+        retval.append("    /**\n     * Host names in ascending order.\n     */\n");
+        retval.append("    static final String[] hostNames = {\n");
+        for (final Map.Entry<String, Set<String>> entry : catalog.hostNames.entrySet()) {
+            retval.append("            \"").append(entry.getKey()).append("\", // ").append(entry.getValue())
+                    .append('\n');
+        }
+        retval.append("    };\n\n");
+
+        retval.append("    /**\n     * IPv4 networks in ascending unsigned order, which do not overlap.\n     */\n");
+        retval.append("    static final int[] ipv4Networks = {\n");
+        for (final Map.Entry<Range, Set<String>> entry : catalog.ipv4Ranges.entrySet()) {
+            retval.append("            ").append(String.format("0x%08X", entry.getKey().low)).append(", // ")
+                    .append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        retval.append("    };\n");
+        appendPrefixLengths(retval, "ipv4PrefixLengths", catalog.ipv4Ranges.keySet());
+
+        retval.append("    /**\n     * IPv6 networks as pairs of the first and last 64 bits, in ascending\n");
+        retval.append("     * unsigned order, which do not overlap.\n     */\n");
+        retval.append("    static final long[] ipv6Networks = {\n");
+        for (final Map.Entry<Range, Set<String>> entry : catalog.ipv6Ranges.entrySet()) {
+            retval.append("            ").append(String.format("0x%016XL, 0x%016XL", entry.getKey().high,
+                    entry.getKey().low)).append(", // ").append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append('\n');
+        }
+        retval.append("    };\n");
+        appendPrefixLengths(retval, "ipv6PrefixLengths", catalog.ipv6Ranges.keySet());
+
+        retval.append("    private ").append(className.substring(dot + 1)).append("() {\n    }\n\n}\n");
+        return retval.toString();
+    }
+
+    protected static void appendPrefixLengths(final StringBuilder builder, final String name,
+            final Set<Range> ranges) {
+        builder.append("    static final int[] ").append(name).append(" = {");
+        boolean first = true;
+        for (final Range range : ranges) {
+            builder.append(first ? " " : ", ").append(range.prefixLength);
+            first = false;
+        }
+        builder.append(first ? "};\n\n" : " };\n\n");
+    }
+
+    protected static long mask(final int prefixLength) {
+        if (prefixLength <= 0) {
+            return 0L;
+        }
+        return prefixLength >= 64 ? -1L : -1L << (64 - prefixLength);
+    }
+
+    /**
+     * The de-duplicated entries of a catalog along with the providers
+     * that publish them.
+     */
+    protected static class Catalog {
+        final Map<String, Set<String>> hostNames = new TreeMap<>();
+        final Map<Range, Set<String>> ipv4Ranges = new TreeMap<>();
+        final Map<Range, Set<String>> ipv6Ranges = new TreeMap<>();
+
+        <K> void add(final Map<K, Set<String>> entries, final K key, final String provider) {
+            entries.computeIfAbsent(key, ignored -> new TreeSet<>()).add(provider);
+        }
+    }
+
+    /**
+     * An address range in a single address family. IPv4 networks are
+     * held in the low 32 bits of <code>low</code>.
+     */
+    protected static class Range implements Comparable<Range> {
+        final boolean ipv4;
+        final long high;
+        final long low;
+        final int prefixLength;
+
+        Range(final boolean ipv4, final long high, final long low, final int prefixLength) {
+            this.ipv4 = ipv4;
+            this.high = high;
+            this.low = low;
+            this.prefixLength = prefixLength;
+        }
+
+        boolean contains(final Range other) {
+            if (other.prefixLength < prefixLength) {
+                return false;
+            }
+            if (ipv4) {
+                final long mask = prefixLength == 0 ? 0L : (0xFFFFFFFFL << (32 - prefixLength)) & 0xFFFFFFFFL;
+                return (other.low & mask) == low;
+            }
+            return (other.high & mask(prefixLength)) == high && (other.low & mask(prefixLength - 64)) == low;
+        }
+
+        public int compareTo(final Range other) {
+            int retval = Long.compareUnsigned(high, other.high);
+            if (retval == 0) {
+                retval = Long.compareUnsigned(low, other.low);
+            }
+            return retval != 0 ? retval : Integer.compare(prefixLength, other.prefixLength);
+        }
+
+        public boolean equals(final Object object) {
+            if (!(object instanceof Range)) {
+                return false;
+            }
+            final Range other = (Range) object;
+            return ipv4 == other.ipv4 && high == other.high && low == other.low && prefixLength == other.prefixLength;
+        }
+
+        public int hashCode() {
+            return Long.hashCode(high) * 31 + Long.hashCode(low) * 17 + prefixLength;
+        }
+
+        public String toString() {
+            final ByteBuffer buffer = ByteBuffer.allocate(ipv4 ? 4 : 16);
+            if (ipv4) {
+                buffer.putInt((int) low);
+            } else {
+                buffer.putLong(high).putLong(low);
+            }
+            try {
+                return InetAddress.getByAddress(buffer.array()).getHostAddress() + "/" + prefixLength;
+            } catch (final UnknownHostException uhe) {
+                throw new IllegalStateException(uhe);
+            }
+        }
+    }
+
+}
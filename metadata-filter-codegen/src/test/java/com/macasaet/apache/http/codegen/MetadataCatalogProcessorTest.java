@@ -0,0 +1,193 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http.codegen;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link MetadataCatalogProcessor}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class MetadataCatalogProcessorTest {
+
+    private static final Path catalog = Paths.get("metadata-endpoints.txt");
+
+    private final StringWriter diagnostics = new StringWriter();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public final void verifyEntriesAreSortedAndDeduplicated() {
+        // given
+        final MetadataCatalogProcessor.Catalog result = MetadataCatalogProcessor.parse(catalog, Arrays.asList(
+                "# provider kind value",
+                "",
+                "gcp      host     Metadata.Google.Internal.",
+                "aws      host     instance-data   # trailing comment",
+                "oracle   address  192.0.0.192",
+                "aws      address  169.254.169.254",
+                "gcp      address  169.254.169.254",
+                "alibaba  address  100.100.100.200",
+                "aws      address  fd00:ec2::254",
+                "example  address  2001:db8::/32"));
+
+        // then
+        assertEquals(Arrays.asList("instance-data", "metadata.google.internal"),
+                Arrays.asList(result.hostNames.keySet().toArray()));
+        assertEquals("[100.100.100.200/32, 169.254.169.254/32, 192.0.0.192/32]",
+                result.ipv4Ranges.keySet().toString());
+        assertEquals("[aws, gcp]", result.ipv4Ranges.values().toArray()[1].toString());
+        assertEquals("[2001:db8:0:0:0:0:0:0/32, fd00:ec2:0:0:0:0:0:254/128]", result.ipv6Ranges.keySet().toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "aws host",
+            "aws host instance-data extra",
+            "aws hostname instance-data",
+            "aws host *.example.com",
+            "aws host -invalid.example",
+            "aws host a..example",
+            "aws address metadata.example",
+            "aws address cafe",
+            "aws address 169.254.169.256",
+            "aws address 169.254.169.254/33",
+            "aws address 169.254.169.254/x",
+            "aws address fd00:ec2::254/129",
+            "aws address ::ffff:169.254.169.254",
+    })
+    public final void verifyInvalidEntriesAreRejected(final String line) {
+        final IllegalArgumentException result = assertThrows(IllegalArgumentException.class,
+                () -> MetadataCatalogProcessor.parse(catalog, Arrays.asList("# header", line)));
+        assertTrue(result.getMessage().startsWith("metadata-endpoints.txt:2: "), result.getMessage());
+    }
+
+    @Test
+    public final void verifyOverlappingRangesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> MetadataCatalogProcessor.parse(catalog,
+                Arrays.asList("aws address 169.254.169.254", "example address 169.254.0.0/16")));
+        assertThrows(IllegalArgumentException.class, () -> MetadataCatalogProcessor.parse(catalog,
+                Arrays.asList("aws address fd00:ec2::254", "example address fd00:ec2::/32")));
+    }
+
+    @Test
+    public final void verifyTableIsGeneratedDuringCompilation() throws IOException {
+        // given
+        final Path catalogFile = write("metadata-endpoints.txt",
+                "alibaba address 100.100.100.200\naws address fd00:ec2::254\ngcp host metadata.google.internal\n");
+
+        // when
+        final boolean result = compile("-A" + MetadataCatalogProcessor.catalogOption + "=" + catalogFile,
+                "-A" + MetadataCatalogProcessor.classOption + "=example.Table");
+
+        // then
+        assertTrue(result, diagnostics.toString());
+        final String generated = new String(Files.readAllBytes(directory.resolve("example/Table.java")), UTF_8);
+        assertTrue(generated.contains("final class Table {"));
+        assertTrue(generated.contains("\"metadata.google.internal\", // [gcp]"));
+        assertTrue(generated.contains("0x646464C8, // 100.100.100.200/32 [alibaba]"));
+        assertTrue(generated.contains("0xFD000EC200000000L, 0x0000000000000254L"));
+        assertTrue(generated.contains("static final int[] ipv6PrefixLengths = { 128 };"));
+    }
+
+    @Test
+    public final void verifyTableIsGeneratedFromClassPathResource() throws IOException {
+        // given
+        Files.createDirectories(directory.resolve("catalogs"));
+        write("catalogs/metadata-endpoints.txt", "alibaba address 100.100.100.200\n");
+
+        // when
+        final boolean result = compile("-classpath", directory.toString(),
+                "-A" + MetadataCatalogProcessor.resourceOption + "=catalogs/metadata-endpoints.txt");
+
+        // then
+        assertTrue(result, diagnostics.toString());
+        final String generated = new String(
+                Files.readAllBytes(directory.resolve("com/macasaet/apache/http/MetadataEndpointTable.java")), UTF_8);
+        assertTrue(generated.contains("0x646464C8, // 100.100.100.200/32 [alibaba]"));
+    }
+
+    @Test
+    public final void verifyInvalidCatalogFailsCompilation() throws IOException {
+        // given
+        final Path catalogFile = write("metadata-endpoints.txt", "alibaba address 100.100.100.300\n");
+
+        // when
+        final boolean result = compile("-A" + MetadataCatalogProcessor.catalogOption + "=" + catalogFile);
+
+        // then
+        assertFalse(result);
+        assertTrue(diagnostics.toString().contains("invalid address: 100.100.100.300"), diagnostics.toString());
+    }
+
+    @Test
+    public final void verifyNothingIsGeneratedWithoutCatalog() throws IOException {
+        // when
+        final boolean result = compile();
+
+        // then
+        assertTrue(result, diagnostics.toString());
+        assertFalse(Files.exists(directory.resolve("com/macasaet/apache/http/MetadataEndpointTable.java")));
+    }
+
+    protected boolean compile(final String... options) throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeTrue(compiler != null, "a compiler is not available");
+        final Path source = write("Trigger.java", "package example;\nclass Trigger {\n}\n");
+        final List<String> arguments = new ArrayList<>(Arrays.asList("-d", directory.toString(), "-proc:only"));
+        arguments.addAll(Arrays.asList(options));
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, UTF_8)) {
+            final CompilationTask task = compiler.getTask(diagnostics, fileManager, null, arguments, null,
+                    fileManager.getJavaFileObjects(source.toFile()));
+            task.setProcessors(Collections.singletonList(new MetadataCatalogProcessor()));
+            return task.call();
+        }
+    }
+
+    protected Path write(final String name, final String contents) throws IOException {
+        return Files.write(directory.resolve(name), contents.getBytes(UTF_8));
+    }
+
+}
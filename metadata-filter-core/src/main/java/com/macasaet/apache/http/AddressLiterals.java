@@ -0,0 +1,224 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+/**
+ * <p>Recognises IP address literals without consulting a name service.
+ * Addresses are parsed directly into their numeric form, without
+ * regular expressions or intermediate strings, so parsing does not
+ * allocate.</p>
+ *
+ * <p>IPv4 literals may be parsed either as decimal only or using the
+ * rules of <code>inet_aton(3)</code>, in which a part with a leading
+ * <code>0x</code> is hexadecimal, a part with a leading <code>0</code>
+ * is octal, and an address may have between one and four parts, e.g.
+ * <code>2852039166</code>, <code>0xA9FEA9FE</code>, and
+ * <code>0251.0376.0251.0376</code> are all 169.254.169.254. Resolvers
+ * differ in which of these forms they accept, so callers should
+ * consider both readings.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AddressLiterals {
+
+    protected AddressLiterals() {
+    }
+
+    /**
+     * @param literal a candidate address
+     * @param start the index of the first character of the address
+     * @param end the index after the last character of the address
+     * @param inetAton true to accept octal and hexadecimal parts, false
+     *                 to read every part as decimal
+     * @return the address as an unsigned 32-bit value or -1 if the
+     *         characters are not an IPv4 literal
+     */
+    public static long parseIpv4(final CharSequence literal, final int start, final int end,
+            final boolean inetAton) {
+        long retval = 0L;
+        int parts = 0;
+        int i = start;
+        while (true) {
+            int radix = 10;
+            if (inetAton && i < end && literal.charAt(i) == '0') {
+                if (i + 1 < end && (literal.charAt(i + 1) == 'x' || literal.charAt(i + 1) == 'X')) {
+                    radix = 16;
+                    i += 2;
+                } else {
+                    radix = 8;
+                }
+            }
+            long value = 0L;
+            final int partStart = i;
+            for (; i < end && literal.charAt(i) != '.'; i++) {
+                final int digit = digit(literal.charAt(i), radix);
+                if (digit < 0) {
+                    return -1L;
+                }
+                value = value * radix + digit;
+                if (value > 0xFFFFFFFFL) {
+                    return -1L;
+                }
+            }
+            if (i == partStart) {
+                return -1L;
+            }
+            parts++;
+            if (i == end) {
+                // the last part fills all of the remaining bytes
+                return value > (0xFFFFFFFFL >>> (8 * (parts - 1))) ? -1L : retval | value;
+            }
+            if (value > 0xFF || parts == 4) {
+                return -1L;
+            }
+            retval |= value << (8 * (4 - parts));
+            i++;
+        }
+    }
+
+    /**
+     * @param literal a candidate address without brackets or a zone,
+     *                e.g. <code>fd00:ec2::254</code> or
+     *                <code>::ffff:169.254.169.254</code>
+     * @param start the index of the first character of the address
+     * @param end the index after the last character of the address
+     * @param address receives the high and low 64 bits of the address,
+     *                in that order, if it is valid
+     * @return true if the characters are an IPv6 literal
+     */
+    public static boolean parseIpv6(final CharSequence literal, final int start, final int end,
+            final long[] address) {
+        final int layout = scanIpv6(literal, start, end, -1, 0, null);
+        if (layout < 0) {
+            return false;
+        }
+        address[0] = 0L;
+        address[1] = 0L;
+        scanIpv6(literal, start, end, (layout >>> 8) - 1, layout & 0xFF, address);
+        return true;
+    }
+
+    /**
+     * Validate an IPv6 literal or, once its layout is known, write its
+     * groups to <code>address</code>.
+     *
+     * @return -1 if the literal is not valid, otherwise the number of
+     *         groups present plus the index of the compressed run, plus
+     *         one, shifted left by eight bits
+     */
+    protected static int scanIpv6(final CharSequence literal, final int start, final int end,
+            final int compressedAt, final int groups, final long[] address) {
+        int count = 0;
+        int compressed = -1;
+        int i = start;
+        if (end - start >= 2 && literal.charAt(start) == ':' && literal.charAt(start + 1) == ':') {
+            compressed = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int value = 0;
+            int j = i;
+            for (; j < end && j - i <= 4; j++) {
+                final int digit = digit(literal.charAt(j), 16);
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+            }
+            if (j < end && literal.charAt(j) == '.') {
+                // an embedded IPv4 address occupies the last two groups
+                final long ipv4 = countParts(literal, i, end) == 4 ? parseIpv4(literal, i, end, false) : -1L;
+                if (ipv4 < 0 || count > 6) {
+                    return -1;
+                }
+                if (address != null) {
+                    place(address, position(count, compressedAt, groups), ipv4 >>> 16);
+                    place(address, position(count + 1, compressedAt, groups), ipv4 & 0xFFFFL);
+                }
+                count += 2;
+                break;
+            }
+            if (j == i || j - i > 4 || count == 8) {
+                return -1;
+            }
+            if (address != null) {
+                place(address, position(count, compressedAt, groups), value);
+            }
+            count++;
+            if (j == end) {
+                break;
+            }
+            if (literal.charAt(j) != ':' || ++j == end) {
+                return -1;
+            }
+            if (literal.charAt(j) == ':') {
+                if (compressed >= 0) {
+                    return -1;
+                }
+                compressed = count;
+                j++;
+            }
+            i = j;
+        }
+        if (compressed >= 0 ? count > 7 : count != 8) {
+            return -1;
+        }
+        return count | ((compressed + 1) << 8);
+    }
+
+    protected static int position(final int index, final int compressedAt, final int groups) {
+        return compressedAt < 0 || index < compressedAt ? index : index + 8 - groups;
+    }
+
+    protected static void place(final long[] address, final int position, final long group) {
+        if (position < 4) {
+            address[0] |= group << (48 - 16 * position);
+        } else {
+            address[1] |= group << (48 - 16 * (position - 4));
+        }
+    }
+
+    protected static int countParts(final CharSequence literal, final int start, final int end) {
+        int retval = 1;
+        for (int i = start; i < end; i++) {
+            if (literal.charAt(i) == '.') {
+                retval++;
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Unlike {@link Character#digit(char, int)}, only ASCII digits are
+     * accepted.
+     */
+    protected static int digit(final char c, final int radix) {
+        final int retval;
+        if (c >= '0' && c <= '9') {
+            retval = c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            retval = c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            retval = c - 'A' + 10;
+        } else {
+            return -1;
+        }
+        return retval < radix ? retval : -1;
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.net.InetAddress;
+
+/**
+ * <p>An immutable set of IPv4 and IPv6 address ranges in CIDR notation,
+ * each of which either blocks or allows matching addresses. When ranges
+ * overlap, the most specific one wins.</p>
+ *
+ * <p>Ranges are stored in a path-compressed binary (Patricia) trie, one
+ * per address family, so the cost of a lookup depends on the address
+ * length rather than on the number of ranges. Addresses are compared as
+ * a pair of <code>long</code> values, so {@link #matchIpv4(int)} and
+ * {@link #matchIpv6(long, long)} do not allocate. Matching an
+ * {@link InetAddress} copies its bytes first, as it exposes them only
+ * through {@link InetAddress#getAddress()}.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AddressRangeTrie {
+
+    public enum Rule {
+        ALLOW,
+        BLOCK,
+    }
+
+    private static final AddressRangeTrie empty = new AddressRangeTrie(null, null, 0);
+
+    private final Node ipv4Root;
+    private final Node ipv6Root;
+    private final int size;
+
+    protected AddressRangeTrie(final Node ipv4Root, final Node ipv6Root, final int size) {
+        this.ipv4Root = ipv4Root;
+        this.ipv6Root = ipv6Root;
+        this.size = size;
+    }
+
+    public static AddressRangeTrie empty() {
+        return empty;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    /**
+     * This copies the address into a new array. Callers that already
+     * hold the numeric address should use {@link #matchIpv4(int)} or
+     * {@link #matchIpv6(long, long)} instead.
+     *
+     * @param address an IPv4 or IPv6 address
+     * @return the rule of the most specific range containing the address
+     *         or <code>null</code> if no range contains it
+     */
+    public Rule match(final InetAddress address) {
+        return match(address.getAddress());
+    }
+
+    /**
+     * @param address a 4 or 16 byte network-order address
+     * @return the rule of the most specific range containing the address
+     *         or <code>null</code> if no range contains it
+     */
+    public Rule match(final byte[] address) {
+        if (address.length == 4) {
+            return find(ipv4Root, high(address), 0L, 32);
+        } else if (address.length == 16) {
+            return find(ipv6Root, high(address), low(address), 128);
+        }
+        throw new IllegalArgumentException("Invalid address length: " + address.length);
+    }
+
+    /**
+     * @param address an IPv4 address as a 32-bit value
+     * @return the rule of the most specific range containing the address
+     *         or <code>null</code> if no range contains it
+     */
+    public Rule matchIpv4(final int address) {
+        return find(ipv4Root, ((long) address) << 32, 0L, 32);
+    }
+
+    /**
+     * @param high the first 64 bits of an IPv6 address
+     * @param low the last 64 bits of an IPv6 address
+     * @return the rule of the most specific range containing the address
+     *         or <code>null</code> if no range contains it
+     */
+    public Rule matchIpv6(final long high, final long low) {
+        return find(ipv6Root, high, low, 128);
+    }
+
+    /**
+     * @return the number of distinct ranges
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    protected static Rule find(final Node root, final long high, final long low, final int width) {
+        Rule retval = null;
+        for (Node node = root; node != null; node = bit(high, low, node.length) ? node.one : node.zero) {
+            if (commonPrefixLength(high, low, node.high, node.low) < node.length) {
+                break;
+            }
+            if (node.rule != null) {
+                retval = node.rule;
+            }
+            if (node.length == width) {
+                break;
+            }
+        }
+        return retval;
+    }
+
+    protected static boolean bit(final long high, final long low, final int index) {
+        return index < 64 ? ((high >>> (63 - index)) & 1L) != 0 : ((low >>> (127 - index)) & 1L) != 0;
+    }
+
+    protected static int commonPrefixLength(final long high, final long low, final long otherHigh,
+            final long otherLow) {
+        final long highDifference = high ^ otherHigh;
+        if (highDifference != 0) {
+            return Long.numberOfLeadingZeros(highDifference);
+        }
+        final long lowDifference = low ^ otherLow;
+        return lowDifference == 0 ? 128 : 64 + Long.numberOfLeadingZeros(lowDifference);
+    }
+
+    protected static long mask(final long bits, final int length) {
+        if (length <= 0) {
+            return 0L;
+        } else if (length >= 64) {
+            return bits;
+        }
+        return bits & (-1L << (64 - length));
+    }
+
+    protected static long high(final byte[] address) {
+        long retval = 0L;
+        for (int i = 0; i < 8; i++) {
+            retval <<= 8;
+            if (i < address.length) {
+                retval |= address[i] & 0xFFL;
+            }
+        }
+        return retval;
+    }
+
+    protected static long low(final byte[] address) {
+        long retval = 0L;
+        for (int i = 8; i < 16; i++) {
+            retval = (retval << 8) | (address[i] & 0xFFL);
+        }
+        return retval;
+    }
+
+    protected static class Node {
+        final long high;
+        final long low;
+        final int length;
+        Rule rule;
+        Node zero;
+        Node one;
+
+        public Node(final long high, final long low, final int length, final Rule rule) {
+            this.high = mask(high, length);
+            this.low = mask(low, length - 64);
+            this.length = length;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Builder for {@link AddressRangeTrie} instances. Builders are not
+     * thread-safe.
+     */
+    public static class Builder {
+
+        private Node ipv4Root;
+        private Node ipv6Root;
+        private int size;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param range an address range in CIDR notation (e.g.
+         *              <code>100.64.0.0/10</code>) or a single address
+         * @return this builder
+         * @throws IllegalArgumentException if the range is not valid
+         */
+        public Builder block(final String range) {
+            return add(range, Rule.BLOCK);
+        }
+
+        /**
+         * @param range an address range in CIDR notation (e.g.
+         *              <code>fd00:ec2::/32</code>) or a single address
+         * @return this builder
+         * @throws IllegalArgumentException if the range is not valid
+         */
+        public Builder allow(final String range) {
+            return add(range, Rule.ALLOW);
+        }
+
+        public Builder add(final String range, final Rule rule) {
+            if (rule == null) {
+                throw new IllegalArgumentException("rule must not be null");
+            }
+            final String trimmed = range.trim();
+            final int slash = trimmed.indexOf('/');
+            final String literal = slash < 0 ? trimmed : trimmed.substring(0, slash);
+            final byte[] address = parseLiteral(literal);
+            final int width = address.length * 8;
+            final int length;
+            try {
+                length = slash < 0 ? width : Integer.parseInt(trimmed.substring(slash + 1));
+            } catch (final NumberFormatException nfe) {
+                throw new IllegalArgumentException("Invalid prefix length: " + range, nfe);
+            }
+            if (length < 0 || length > width) {
+                throw new IllegalArgumentException("Invalid prefix length: " + range);
+            }
+            final Node node = new Node(high(address), width == 128 ? low(address) : 0L, length, rule);
+            if (width == 32) {
+                ipv4Root = insert(ipv4Root, node);
+            } else {
+                ipv6Root = insert(ipv6Root, node);
+            }
+            return this;
+        }
+
+        public AddressRangeTrie build() {
+            final AddressRangeTrie retval = new AddressRangeTrie(ipv4Root, ipv6Root, size);
+            // the nodes now belong to the trie
+            ipv4Root = null;
+            ipv6Root = null;
+            size = 0;
+            return retval;
+        }
+
+        protected Node insert(final Node root, final Node leaf) {
+            if (root == null) {
+                size++;
+                return leaf;
+            }
+            Node parent = null;
+            Node node = root;
+            while (true) {
+                final int common = Math.min(
+                        commonPrefixLength(leaf.high, leaf.low, node.high, node.low),
+                        Math.min(node.length, leaf.length));
+                if (common == node.length && common == leaf.length) {
+                    // same range, last one wins
+                    if (node.rule == null) {
+                        size++;
+                    }
+                    node.rule = leaf.rule;
+                    return root;
+                }
+                if (common == node.length) {
+                    // the existing range contains the new one
+                    final boolean direction = bit(leaf.high, leaf.low, node.length);
+                    final Node child = direction ? node.one : node.zero;
+                    if (child == null) {
+                        attach(node, leaf, direction);
+                        size++;
+                        return root;
+                    }
+                    parent = node;
+                    node = child;
+                    continue;
+                }
+                final Node replacement;
+                if (common == leaf.length) {
+                    // the new range contains the existing one
+                    replacement = leaf;
+                } else {
+                    replacement = new Node(leaf.high, leaf.low, common, null);
+                    attach(replacement, leaf, bit(leaf.high, leaf.low, common));
+                }
+                attach(replacement, node, bit(node.high, node.low, common));
+                size++;
+                if (parent == null) {
+                    return replacement;
+                }
+                attach(parent, replacement, bit(replacement.high, replacement.low, parent.length));
+                return root;
+            }
+        }
+
+        protected void attach(final Node parent, final Node child, final boolean direction) {
+            if (direction) {
+                parent.one = child;
+            } else {
+                parent.zero = child;
+            }
+        }
+
+        /**
+         * Convert an IP address literal to bytes without ever consulting
+         * a name service.
+         */
+        protected byte[] parseLiteral(final String literal) {
+            if (literal.indexOf(':') < 0) {
+                final long address = literal.matches("\\d{1,3}(\\.\\d{1,3}){3}")
+                        ? AddressLiterals.parseIpv4(literal, 0, literal.length(), false)
+                        : -1L;
+                if (address < 0) {
+                    throw new IllegalArgumentException("Not an IP address: " + literal);
+                }
+                return toBytes(address, 4);
+            }
+            final long[] address = new long[2];
+            if (!AddressLiterals.parseIpv6(literal, 0, literal.length(), address)) {
+                throw new IllegalArgumentException("Not an IP address: " + literal);
+            }
+            // like InetAddress, treat an IPv4-mapped address as IPv4
+            if (address[0] == 0L && address[1] >>> 32 == 0xFFFFL) {
+                return toBytes(address[1], 4);
+            }
+            final byte[] retval = new byte[16];
+            System.arraycopy(toBytes(address[0], 8), 0, retval, 0, 8);
+            System.arraycopy(toBytes(address[1], 8), 0, retval, 8, 8);
+            return retval;
+        }
+
+        /**
+         * @return the low <code>count</code> bytes of the value in
+         *         network byte order
+         */
+        protected byte[] toBytes(final long value, final int count) {
+            final byte[] retval = new byte[count];
+            for (int i = count; --i >= 0;) {
+                retval[i] = (byte) (value >>> (8 * (count - 1 - i)));
+            }
+            return retval;
+        }
+    }
+
+}
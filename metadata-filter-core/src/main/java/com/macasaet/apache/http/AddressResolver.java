@@ -0,0 +1,40 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * <p>Looks up the addresses of a host name. This has the same shape as
+ * the resolvers of the supported HTTP clients, so an existing resolver
+ * can be adapted with a method reference, e.g.
+ * <code>dnsResolver::resolve</code>.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public interface AddressResolver {
+
+    /**
+     * @param hostName a host name or IP address literal
+     * @return the addresses of the host
+     * @throws UnknownHostException if the host name cannot be resolved
+     */
+    InetAddress[] resolve(String hostName) throws UnknownHostException;
+
+}
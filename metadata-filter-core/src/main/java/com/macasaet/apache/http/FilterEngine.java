@@ -0,0 +1,413 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * <p>Decides whether a host may be contacted, independent of any
+ * particular HTTP client. An engine is thread-safe and is intended to
+ * be shared by every client in the JVM, so that its
+ * {@link VerdictCache}, {@link FilterListener listeners}, and compiled
+ * rules are warmed up once:</p>
+ *
+ * <pre>
+ * final FilterEngine engine = FilterEngine.custom()
+ *     .setVerdictCache(new VerdictCache(4096, 30, 10, TimeUnit.SECONDS))
+ *     .build();
+ * </pre>
+ *
+ * <p>A host is checked against the following rules, in order, using a
+ * single snapshot of the {@link FilterPolicy}: trusted host names,
+ * blocked host names, an explicit address if the client already has
+ * one, the address of an IP address literal, cached verdicts, and
+ * finally the addresses that the host name resolves to. IP address
+ * literals are never passed to the resolver unless they are ambiguous
+ * and none of their readings is blocked.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilterEngine {
+
+    private static final ThreadLocal<long[]> ipv6Address = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final AddressResolver resolver;
+    private final VerdictCache verdictCache;
+    private final Supplier<FilterPolicy> policy;
+    private final FilterListener listener;
+
+    /**
+     * @param resolver used to look up the addresses of target hosts
+     * @param verdictCache a cache for allow/deny decisions or
+     *                     <code>null</code> to evaluate every request
+     * @param policy the source of the current rules, consulted on every
+     *               check
+     * @param listener notified of every decision or <code>null</code>
+     *                 to skip instrumentation
+     */
+    protected FilterEngine(final AddressResolver resolver, final VerdictCache verdictCache,
+            final Supplier<FilterPolicy> policy, final FilterListener listener) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("resolver must not be null");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.resolver = resolver;
+        this.verdictCache = verdictCache;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    /**
+     * @param hostName a host that may be contacted later
+     * @return the outcome of checking the host against the current policy
+     * @throws IOException if the host name cannot be resolved
+     */
+    public Verdict check(final String hostName) throws IOException {
+        return check(hostName, null);
+    }
+
+    /**
+     * Check a host, notifying any listeners of the outcome.
+     *
+     * @param hostName a host that may be contacted later
+     * @param explicitAddress the address the client will connect to or
+     *                        <code>null</code> if the client will
+     *                        resolve the host name
+     * @return the outcome of checking the host against the current policy
+     * @throws IOException if the host name cannot be resolved
+     */
+    public Verdict check(final String hostName, final InetAddress explicitAddress) throws IOException {
+        if (listener == null) {
+            return evaluate(hostName, explicitAddress);
+        }
+        final long start = System.nanoTime();
+        final Verdict retval;
+        try {
+            retval = evaluate(hostName, explicitAddress);
+        } catch (final IOException ioe) {
+            listener.onDecision(hostName, Verdict.RESOLUTION_FAILURE, System.nanoTime() - start);
+            throw ioe;
+        }
+        listener.onDecision(hostName, retval, System.nanoTime() - start);
+        return retval;
+    }
+
+    /**
+     * Decide a host without resolving it, for callers that perform the
+     * lookup themselves, e.g. on another thread. If this returns
+     * <code>null</code>, resolve the host and pass the addresses along
+     * with the same policy to
+     * {@link #evaluateAddresses(FilterPolicy, String, InetAddress[])}.
+     * Listeners are not notified.
+     *
+     * @param currentPolicy a snapshot obtained from {@link #getPolicy()}
+     * @param hostName the host to check
+     * @param explicitAddress the address the client will connect to or
+     *                        <code>null</code> if the client will
+     *                        resolve the host name
+     * @return the verdict or <code>null</code> if the host name must be
+     *         resolved first
+     */
+    public Verdict evaluateName(final FilterPolicy currentPolicy, final String hostName,
+            final InetAddress explicitAddress) {
+        // trust applies to a name's DNS records, so an explicit address is always checked
+        if (explicitAddress == null && currentPolicy.isTrustedHostName(hostName)) {
+            return Verdict.ALLOWED;
+        }
+        if (currentPolicy.isBlockedHostName(hostName)) {
+            return Verdict.BLOCKED_BY_NAME;
+        }
+        if (explicitAddress != null) {
+            return currentPolicy.isBlockedAddress(explicitAddress) ? Verdict.BLOCKED_BY_ADDRESS : Verdict.ALLOWED;
+        }
+        final Verdict literal = evaluateLiteral(currentPolicy, hostName);
+        if (literal != null) {
+            return literal;
+        }
+        final VerdictCache cache = verdictCache;
+        if (cache != null) {
+            final Boolean cached = cache.get(hostName, currentPolicy);
+            if (cached != null) {
+                // names are checked above, so only address verdicts are cached
+                return cached ? Verdict.ALLOWED : Verdict.BLOCKED_BY_ADDRESS;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decide a host name that is an IP address literal without resolving
+     * it.
+     *
+     * @param currentPolicy the snapshot used to decide the host name
+     * @param hostName a host name, possibly an IP address literal
+     * @return the verdict or <code>null</code> if the name must be
+     *         resolved
+     */
+    public Verdict evaluateLiteral(final FilterPolicy currentPolicy, final String hostName) {
+        int start = 0;
+        int end = hostName.length();
+        if (end > 1 && hostName.charAt(0) == '[' && hostName.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        if (hostName.indexOf(':', start) >= 0) {
+            final long[] address = ipv6Address.get();
+            if (!AddressLiterals.parseIpv6(hostName, start, end, address)) {
+                return null;
+            }
+            return currentPolicy.isBlockedIpv6Address(address[0], address[1]) ? Verdict.BLOCKED_BY_ADDRESS
+                    : Verdict.ALLOWED;
+        }
+        final long decimal = AddressLiterals.parseIpv4(hostName, start, end, false);
+        final long inetAton = AddressLiterals.parseIpv4(hostName, start, end, true);
+        if (decimal >= 0 && decimal == inetAton) {
+            return currentPolicy.isBlockedIpv4Address((int) decimal) ? Verdict.BLOCKED_BY_ADDRESS : Verdict.ALLOWED;
+        }
+        // resolvers disagree on leading zeros and hexadecimal, so block if any reading is blocked
+        if ((decimal >= 0 && currentPolicy.isBlockedIpv4Address((int) decimal))
+                || (inetAton >= 0 && currentPolicy.isBlockedIpv4Address((int) inetAton))) {
+            return Verdict.BLOCKED_BY_ADDRESS;
+        }
+        return null;
+    }
+
+    /**
+     * @param currentPolicy the snapshot used to decide the host name
+     * @param hostName a host name that was not decided by
+     *                 {@link #evaluateName(FilterPolicy, String, InetAddress)}
+     * @param addresses the addresses the host name resolves to
+     * @return the outcome of checking the addresses
+     */
+    public Verdict evaluateAddresses(final FilterPolicy currentPolicy, final String hostName,
+            final InetAddress[] addresses) {
+        final boolean permitted = !currentPolicy.containsBlockedAddress(addresses);
+        final VerdictCache cache = verdictCache;
+        if (cache != null) {
+            cache.put(hostName, currentPolicy, permitted);
+        }
+        return permitted ? Verdict.ALLOWED : Verdict.BLOCKED_BY_ADDRESS;
+    }
+
+    /**
+     * @param hostName a host name
+     * @return the addresses of the host
+     * @throws UnknownHostException if the host name cannot be resolved
+     */
+    public InetAddress[] resolve(final String hostName) throws UnknownHostException {
+        if (listener == null) {
+            return resolver.resolve(hostName);
+        }
+        final long start = System.nanoTime();
+        try {
+            return resolver.resolve(hostName);
+        } finally {
+            listener.onResolution(hostName, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the current rules; read this once per decision so that the
+     *         whole decision uses a single snapshot
+     */
+    public FilterPolicy getPolicy() {
+        return policy.get();
+    }
+
+    public AddressResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * @return the verdict cache or <code>null</code> if verdicts are not
+     *         cached
+     */
+    public VerdictCache getVerdictCache() {
+        return verdictCache;
+    }
+
+    /**
+     * @return the listener notified of every decision or
+     *         <code>null</code> if there is none
+     */
+    public FilterListener getListener() {
+        return listener;
+    }
+
+    protected Verdict evaluate(final String hostName, final InetAddress explicitAddress) throws IOException {
+        final FilterPolicy currentPolicy = getPolicy();
+        final Verdict retval = evaluateName(currentPolicy, hostName, explicitAddress);
+        if (retval != null) {
+            return retval;
+        }
+        // resolution failures propagate and are never cached
+        return evaluateAddresses(currentPolicy, hostName, resolve(hostName));
+    }
+
+    /**
+     * Builder for {@link FilterEngine} instances. Builders are not
+     * thread-safe.
+     */
+    public static class Builder {
+
+        private AddressResolver resolver = InetAddress::getAllByName;
+        private VerdictCache verdictCache;
+        private HostNameTrie blockedHosts;
+        private AddressRangeTrie addressRanges = AddressRangeTrie.empty();
+        private HostNameSet trustedHosts = HostNameSet.empty();
+        private Supplier<FilterPolicy> policy;
+        private final List<FilterListener> listeners = new ArrayList<>();
+
+        protected Builder() {
+        }
+
+        /**
+         * @param resolver used to look up the addresses of target hosts.
+         *                 By default, the JVM's resolver is used.
+         * @return this builder
+         */
+        public Builder setResolver(final AddressResolver resolver) {
+            this.resolver = resolver;
+            return this;
+        }
+
+        /**
+         * @param verdictCache a cache for allow/deny decisions or
+         *                     <code>null</code> to evaluate every request
+         * @return this builder
+         */
+        public Builder setVerdictCache(final VerdictCache verdictCache) {
+            this.verdictCache = verdictCache;
+            return this;
+        }
+
+        /**
+         * @param blockedHosts the host names to block, along with their
+         *                     subdomains, <em>instead of</em>
+         *                     {@link FilterPolicy#defaultBlockedHosts}
+         * @return this builder
+         */
+        public Builder setBlockedHosts(final HostNameTrie blockedHosts) {
+            this.blockedHosts = blockedHosts;
+            return this;
+        }
+
+        /**
+         * @param addressRanges address ranges to block or allow in
+         *                      addition to the link local, site local,
+         *                      loopback, and wildcard addresses that are
+         *                      blocked by default
+         * @return this builder
+         */
+        public Builder setAddressRanges(final AddressRangeTrie addressRanges) {
+            this.addressRanges = addressRanges;
+            return this;
+        }
+
+        /**
+         * @param trustedHosts host names to permit without resolving
+         *                     them. These are consulted before any other
+         *                     rule, so they should be limited to names
+         *                     whose DNS records are under your control.
+         * @return this builder
+         */
+        public Builder setTrustedHosts(final HostNameSet trustedHosts) {
+            this.trustedHosts = trustedHosts;
+            return this;
+        }
+
+        /**
+         * @param policy the source of the rules to apply, consulted on
+         *               every check. This takes precedence over
+         *               {@link #setBlockedHosts(HostNameTrie)},
+         *               {@link #setAddressRanges(AddressRangeTrie)}, and
+         *               {@link #setTrustedHosts(HostNameSet)}.
+         * @return this builder
+         */
+        public Builder setPolicy(final Supplier<FilterPolicy> policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * @param listener notified of every decision, e.g. a
+         *                 {@link FilterMetrics}. Listeners are invoked in
+         *                 the order in which they were added.
+         * @return this builder
+         */
+        public Builder addListener(final FilterListener listener) {
+            if (listener == null) {
+                throw new IllegalArgumentException("listener must not be null");
+            }
+            listeners.add(listener);
+            return this;
+        }
+
+        public FilterEngine build() {
+            Supplier<FilterPolicy> source = policy;
+            if (source == null) {
+                final FilterPolicy fixed = new FilterPolicy(
+                        blockedHosts != null ? blockedHosts : FilterPolicy.defaultPolicy().getBlockedHosts(),
+                        addressRanges, trustedHosts);
+                source = () -> fixed;
+            }
+            final FilterListener listener;
+            if (listeners.isEmpty()) {
+                listener = null;
+            } else if (listeners.size() == 1) {
+                listener = listeners.get(0);
+            } else {
+                listener = new CompositeFilterListener(listeners.toArray(new FilterListener[listeners.size()]));
+            }
+            return new FilterEngine(resolver, verdictCache, source, listener);
+        }
+    }
+
+    protected static class CompositeFilterListener implements FilterListener {
+
+        private final FilterListener[] listeners;
+
+        public CompositeFilterListener(final FilterListener[] listeners) {
+            this.listeners = listeners;
+        }
+
+        public void onDecision(final String hostName, final Verdict verdict, final long elapsedNanos) {
+            for (final FilterListener listener : listeners) {
+                listener.onDecision(hostName, verdict, elapsedNanos);
+            }
+        }
+
+        public void onResolution(final String hostName, final long elapsedNanos) {
+            for (final FilterListener listener : listeners) {
+                listener.onResolution(hostName, elapsedNanos);
+            }
+        }
+    }
+
+}
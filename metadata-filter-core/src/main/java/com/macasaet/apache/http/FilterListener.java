@@ -0,0 +1,51 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+/**
+ * <p>Receives a callback for every filter decision. Implementations are
+ * invoked synchronously on the requesting thread, possibly from many
+ * threads at once, so they must be thread-safe and should return
+ * quickly.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ * @see FilterMetrics
+ */
+public interface FilterListener {
+
+    /**
+     * @param hostName the host that was checked
+     * @param verdict the outcome of the check
+     * @param elapsedNanos the time taken to reach the verdict, including
+     *                     any lookup
+     */
+    void onDecision(String hostName, Verdict verdict, long elapsedNanos);
+
+    /**
+     * Called after every lookup of a host name, whether or not it
+     * succeeded. This is not called when the verdict is already known
+     * from the host name, an explicit address, or the
+     * {@link VerdictCache}.
+     *
+     * @param hostName the host that was resolved
+     * @param elapsedNanos the time taken by the resolver
+     */
+    default void onResolution(final String hostName, final long elapsedNanos) {
+    }
+
+}
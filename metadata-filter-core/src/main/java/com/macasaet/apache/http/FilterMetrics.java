@@ -0,0 +1,158 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>A {@link FilterListener} that counts decisions by {@link Verdict}
+ * and records decision and lookup latencies. Updates only touch striped
+ * counters, so they remain cheap under contention; the counters are
+ * only summed when they are read.</p>
+ *
+ * <p>The metrics can optionally be exposed over JMX:</p>
+ *
+ * <pre>
+ * final FilterMetrics metrics = new FilterMetrics();
+ * metrics.register("outbound");
+ * final FilterEngine engine = FilterEngine.custom()
+ *     .addListener(metrics)
+ *     .build();
+ * </pre>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilterMetrics implements FilterListener, FilterMetricsMBean {
+
+    public static final String domain = "com.macasaet.apache.http";
+
+    private final LongAdder[] counts = new LongAdder[Verdict.values().length];
+    private final LatencyHistogram decisionLatency = new LatencyHistogram();
+    private final LatencyHistogram resolutionLatency = new LatencyHistogram();
+
+    public FilterMetrics() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void onDecision(final String hostName, final Verdict verdict, final long elapsedNanos) {
+        counts[verdict.ordinal()].increment();
+        decisionLatency.record(elapsedNanos);
+    }
+
+    public void onResolution(final String hostName, final long elapsedNanos) {
+        resolutionLatency.record(elapsedNanos);
+    }
+
+    /**
+     * Expose these metrics through the platform MBean server.
+     *
+     * @param name distinguishes this instance from other filters in the
+     *             same JVM
+     * @return the name under which the metrics were registered
+     * @throws JMException if the metrics cannot be registered, e.g.
+     *                     because the name is already in use
+     */
+    public ObjectName register(final String name) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName retval = new ObjectName(domain + ":type=FilterMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, retval);
+        return retval;
+    }
+
+    /**
+     * @param verdict an outcome
+     * @return the number of decisions with that outcome
+     */
+    public long getCount(final Verdict verdict) {
+        return counts[verdict.ordinal()].sum();
+    }
+
+    /**
+     * @return the time taken to reach each verdict, in nanoseconds
+     */
+    public LatencyHistogram getDecisionLatency() {
+        return decisionLatency;
+    }
+
+    /**
+     * @return the time taken by each lookup, in nanoseconds
+     */
+    public LatencyHistogram getResolutionLatency() {
+        return resolutionLatency;
+    }
+
+    public long getAllowedCount() {
+        return getCount(Verdict.ALLOWED);
+    }
+
+    public long getBlockedByNameCount() {
+        return getCount(Verdict.BLOCKED_BY_NAME);
+    }
+
+    public long getBlockedByAddressCount() {
+        return getCount(Verdict.BLOCKED_BY_ADDRESS);
+    }
+
+    public long getResolutionFailureCount() {
+        return getCount(Verdict.RESOLUTION_FAILURE);
+    }
+
+    public long getDecisionLatency50thPercentile() {
+        return decisionLatency.getPercentile(50);
+    }
+
+    public long getDecisionLatency99thPercentile() {
+        return decisionLatency.getPercentile(99);
+    }
+
+    public long getDecisionLatency999thPercentile() {
+        return decisionLatency.getPercentile(99.9);
+    }
+
+    public long getDecisionLatencyMax() {
+        return decisionLatency.getMax();
+    }
+
+    public long getResolutionCount() {
+        return resolutionLatency.getCount();
+    }
+
+    public long getResolutionLatency50thPercentile() {
+        return resolutionLatency.getPercentile(50);
+    }
+
+    public long getResolutionLatency99thPercentile() {
+        return resolutionLatency.getPercentile(99);
+    }
+
+    public long getResolutionLatency999thPercentile() {
+        return resolutionLatency.getPercentile(99.9);
+    }
+
+    public long getResolutionLatencyMax() {
+        return resolutionLatency.getMax();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+/**
+ * <p>The JMX management interface of {@link FilterMetrics}. Latencies are
+ * in nanoseconds.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public interface FilterMetricsMBean {
+
+    long getAllowedCount();
+
+    long getBlockedByNameCount();
+
+    long getBlockedByAddressCount();
+
+    long getResolutionFailureCount();
+
+    long getDecisionLatency50thPercentile();
+
+    long getDecisionLatency99thPercentile();
+
+    long getDecisionLatency999thPercentile();
+
+    long getDecisionLatencyMax();
+
+    long getResolutionCount();
+
+    long getResolutionLatency50thPercentile();
+
+    long getResolutionLatency99thPercentile();
+
+    long getResolutionLatency999thPercentile();
+
+    long getResolutionLatencyMax();
+
+}
@@ -0,0 +1,304 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * <p>An immutable set of rules that determine which hosts may be
+ * contacted. A policy is safe to share between threads and is typically
+ * published as a whole so that a request never observes a partially
+ * updated rule set.</p>
+ *
+ * <p>Policies can be read from a properties file with the following
+ * keys, each of which takes a comma- or whitespace-separated list:</p>
+ *
+ * <pre>
+ * # host names to block along with their subdomains, *.example blocks subdomains only
+ * blocked.hosts = *.corp, tenant-42.example.com
+ * # address ranges to block in addition to internal and metadata endpoint addresses
+ * blocked.addresses = 100.64.0.0/10, 198.18.0.0/15
+ * # address ranges to exempt from blocking
+ * allowed.addresses = 10.1.0.0/16
+ * # whether to include the default blocked host names (default: true)
+ * default.blocked.hosts = true
+ * # host names to trust without resolving them, *.example trusts subdomains only
+ * trusted.hosts = api.partner.example, *.cdn.example
+ * </pre>
+ *
+ * <p>Trusted host names are consulted before any other rule. A request
+ * to a trusted name is permitted without resolving it, so they should be
+ * limited to names whose DNS records are under the operator's
+ * control.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilterPolicy {
+
+    public static final String blockedHostsKey = "blocked.hosts";
+    public static final String blockedAddressesKey = "blocked.addresses";
+    public static final String allowedAddressesKey = "allowed.addresses";
+    public static final String defaultBlockedHostsKey = "default.blocked.hosts";
+    public static final String trustedHostsKey = "trusted.hosts";
+
+    /**
+     * The {@link MetadataEndpoints#hostNames metadata host names} of
+     * popular cloud providers.
+     */
+    public static final List<String> defaultBlockedHosts = MetadataEndpoints.hostNames;
+
+    private static final List<String> keys = unmodifiableList(
+            asList(blockedHostsKey, blockedAddressesKey, allowedAddressesKey, defaultBlockedHostsKey,
+                    trustedHostsKey));
+    private static final FilterPolicy defaultPolicy = new FilterPolicy(
+            HostNameTrie.custom().addAll(defaultBlockedHosts).build(),
+            AddressRangeTrie.empty());
+
+    private final HostNameTrie blockedHosts;
+    private final AddressRangeTrie addressRanges;
+    private final HostNameSet trustedHosts;
+
+    /**
+     * @param blockedHosts host names to block along with their subdomains
+     * @param addressRanges address ranges to block or allow in addition
+     *                      to the link local, site local, loopback,
+     *                      wildcard, and metadata endpoint addresses
+     *                      that are blocked by default
+     */
+    public FilterPolicy(final HostNameTrie blockedHosts, final AddressRangeTrie addressRanges) {
+        this(blockedHosts, addressRanges, HostNameSet.empty());
+    }
+
+    /**
+     * @param blockedHosts host names to block along with their subdomains
+     * @param addressRanges address ranges to block or allow in addition
+     *                      to the link local, site local, loopback,
+     *                      wildcard, and metadata endpoint addresses
+     *                      that are blocked by default
+     * @param trustedHosts host names to permit without resolving them
+     */
+    public FilterPolicy(final HostNameTrie blockedHosts, final AddressRangeTrie addressRanges,
+            final HostNameSet trustedHosts) {
+        if (blockedHosts == null) {
+            throw new IllegalArgumentException("blockedHosts must not be null");
+        }
+        if (addressRanges == null) {
+            throw new IllegalArgumentException("addressRanges must not be null");
+        }
+        if (trustedHosts == null) {
+            throw new IllegalArgumentException("trustedHosts must not be null");
+        }
+        this.blockedHosts = blockedHosts;
+        this.addressRanges = addressRanges;
+        this.trustedHosts = trustedHosts;
+    }
+
+    /**
+     * @return a policy that blocks {@link #defaultBlockedHosts} and
+     *         internal addresses
+     */
+    public static FilterPolicy defaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * @param path a properties file
+     * @return the policy described by the file
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file contains invalid rules
+     */
+    public static FilterPolicy load(final Path path) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(path)) {
+            properties.load(stream);
+        }
+        return parse(properties);
+    }
+
+    /**
+     * @param properties policy rules
+     * @return the policy described by the properties
+     * @throws IllegalArgumentException if the properties contain unknown
+     *                                  keys or invalid rules
+     */
+    public static FilterPolicy parse(final Properties properties) {
+        final Set<String> unknownKeys = new HashSet<>(properties.stringPropertyNames());
+        unknownKeys.removeAll(keys);
+        if (!unknownKeys.isEmpty()) {
+            throw new IllegalArgumentException("Unknown keys: " + unknownKeys);
+        }
+        final HostNameTrie.Builder hosts = HostNameTrie.custom();
+        final String defaults = properties.getProperty(defaultBlockedHostsKey, "true").trim();
+        if (!"true".equalsIgnoreCase(defaults) && !"false".equalsIgnoreCase(defaults)) {
+            throw new IllegalArgumentException("Invalid value for " + defaultBlockedHostsKey + ": " + defaults);
+        }
+        if (Boolean.parseBoolean(defaults)) {
+            hosts.addAll(defaultBlockedHosts);
+        }
+        for (final String host : split(properties.getProperty(blockedHostsKey))) {
+            hosts.add(host);
+        }
+        final AddressRangeTrie.Builder ranges = AddressRangeTrie.custom();
+        for (final String range : split(properties.getProperty(blockedAddressesKey))) {
+            ranges.block(range);
+        }
+        for (final String range : split(properties.getProperty(allowedAddressesKey))) {
+            ranges.allow(range);
+        }
+        final HostNameSet.Builder trusted = HostNameSet.custom();
+        for (final String host : split(properties.getProperty(trustedHostsKey))) {
+            trusted.add(host);
+        }
+        return new FilterPolicy(hosts.build(), ranges.build(), trusted.build());
+    }
+
+    public HostNameTrie getBlockedHosts() {
+        return blockedHosts;
+    }
+
+    public AddressRangeTrie getAddressRanges() {
+        return addressRanges;
+    }
+
+    public HostNameSet getTrustedHosts() {
+        return trustedHosts;
+    }
+
+    /**
+     * @param hostName a host name
+     * @return true if the name may be contacted without resolving it
+     */
+    public boolean isTrustedHostName(final String hostName) {
+        return trustedHosts.matches(hostName);
+    }
+
+    /**
+     * @param hostName a host name or IP address literal
+     * @return true if the name or one of its parent domains is blocked
+     */
+    public boolean isBlockedHostName(final String hostName) {
+        return blockedHosts.matches(hostName);
+    }
+
+    /**
+     * @param address a candidate address
+     * @return true if the most specific matching range blocks the
+     *         address or, if no range matches, it is an internal address
+     *         or a metadata endpoint
+     */
+    public boolean isBlockedAddress(final InetAddress address) {
+        final AddressRangeTrie.Rule rule = addressRanges.match(address);
+        if (rule != null) {
+            return rule == AddressRangeTrie.Rule.BLOCK;
+        }
+        return isInternalAddress(address) || MetadataEndpoints.isMetadataAddress(address);
+    }
+
+    /**
+     * @param address a candidate IPv4 address as a 32-bit value
+     * @return true if the most specific matching range blocks the
+     *         address or, if no range matches, it is an internal address
+     *         or a metadata endpoint
+     */
+    public boolean isBlockedIpv4Address(final int address) {
+        final AddressRangeTrie.Rule rule = addressRanges.matchIpv4(address);
+        if (rule != null) {
+            return rule == AddressRangeTrie.Rule.BLOCK;
+        }
+        return isInternalIpv4Address(address) || MetadataEndpoints.isMetadataIpv4Address(address);
+    }
+
+    /**
+     * @param high the first 64 bits of a candidate IPv6 address
+     * @param low the last 64 bits of a candidate IPv6 address
+     * @return true if the most specific matching range blocks the
+     *         address or, if no range matches, it is an internal address
+     *         or a metadata endpoint
+     */
+    public boolean isBlockedIpv6Address(final long high, final long low) {
+        if (high == 0L && (low >>> 32) == 0xFFFFL) {
+            // InetAddress treats IPv4-mapped addresses as IPv4 addresses
+            return isBlockedIpv4Address((int) low);
+        }
+        final AddressRangeTrie.Rule rule = addressRanges.matchIpv6(high, low);
+        if (rule != null) {
+            return rule == AddressRangeTrie.Rule.BLOCK;
+        }
+        return isInternalIpv6Address(high, low) || MetadataEndpoints.isMetadataIpv6Address(high, low);
+    }
+
+    /**
+     * @param addresses candidate addresses for a single host
+     * @return true if any of the addresses is blocked
+     */
+    public boolean containsBlockedAddress(final InetAddress[] addresses) {
+        for (final InetAddress address : addresses) {
+            if (isBlockedAddress(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static boolean isInternalAddress(final InetAddress address) {
+        return address.isLinkLocalAddress() || address.isAnyLocalAddress() || address.isLoopbackAddress()
+                || address.isSiteLocalAddress();
+    }
+
+    /**
+     * The equivalent of {@link #isInternalAddress(InetAddress)} for an
+     * IPv4 address that has not been converted to an {@link InetAddress}.
+     */
+    protected static boolean isInternalIpv4Address(final int address) {
+        final int firstOctet = address >>> 24;
+        return address == 0 // wildcard
+                || firstOctet == 127 // loopback
+                || (address >>> 16) == 0xA9FE // link local, 169.254.0.0/16
+                || firstOctet == 10 || (address >>> 20) == 0xAC1 || (address >>> 16) == 0xC0A8; // site local
+    }
+
+    /**
+     * The equivalent of {@link #isInternalAddress(InetAddress)} for an
+     * IPv6 address that has not been converted to an {@link InetAddress}.
+     */
+    protected static boolean isInternalIpv6Address(final long high, final long low) {
+        final long prefix = high >>> 54;
+        return (high == 0L && (low == 0L || low == 1L)) // wildcard or loopback
+                || prefix == 0x3FAL // link local, fe80::/10
+                || prefix == 0x3FBL; // site local, fec0::/10
+    }
+
+    protected static String[] split(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return new String[0];
+        }
+        return value.trim().split("[,\\s]+");
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>An immutable, case-insensitive set of DNS names intended for
+ * allowlists. A name such as <code>api.partner.example</code> matches
+ * only itself while a name such as <code>*.partner.example</code>
+ * matches only subdomains.</p>
+ *
+ * <p>Names are compiled into an open addressing hash table. A host name
+ * is matched in a single right-to-left pass that maintains the hash of
+ * the current suffix, probing the table once at each label boundary, so
+ * matching does not allocate and does not depend on the number of
+ * names.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class HostNameSet {
+
+    private static final byte exact = 1;
+    private static final byte subdomains = 2;
+
+    private static final HostNameSet empty = new HostNameSet(new String[1], new int[1], new byte[1], 0);
+
+    private final String[] names;
+    private final int[] hashes;
+    private final byte[] flags;
+    private final int mask;
+    private final int size;
+
+    protected HostNameSet(final String[] names, final int[] hashes, final byte[] flags, final int size) {
+        this.names = names;
+        this.hashes = hashes;
+        this.flags = flags;
+        this.mask = names.length - 1;
+        this.size = size;
+    }
+
+    public static HostNameSet empty() {
+        return empty;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    /**
+     * @param hostName a DNS name, optionally fully-qualified with a
+     *                 trailing dot
+     * @return true if the name is in this set or one of its parent
+     *         domains is in this set as a wildcard
+     */
+    public boolean matches(final String hostName) {
+        if (size == 0) {
+            return false;
+        }
+        int end = hostName.length();
+        if (end > 0 && hostName.charAt(end - 1) == '.') {
+            end--;
+        }
+        // the same polynomial as String#hashCode, accumulated from the right
+        int hash = 0;
+        int multiplier = 1;
+        for (int i = end; --i >= 0;) {
+            hash += Character.toLowerCase(hostName.charAt(i)) * multiplier;
+            multiplier *= 31;
+            if (i == 0) {
+                return (find(hostName, 0, end, hash) & exact) != 0;
+            } else if (hostName.charAt(i - 1) == '.' && (find(hostName, i, end, hash) & subdomains) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of names in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    protected byte find(final String hostName, final int start, final int end, final int hash) {
+        final int length = end - start;
+        for (int index = spread(hash) & mask;; index = (index + 1) & mask) {
+            final String name = names[index];
+            if (name == null) {
+                return 0;
+            }
+            if (hashes[index] == hash && name.length() == length
+                    && name.regionMatches(true, 0, hostName, start, length)) {
+                return flags[index];
+            }
+        }
+    }
+
+    protected static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Builder for {@link HostNameSet} instances. Builders are not
+     * thread-safe.
+     */
+    public static class Builder {
+
+        private final Map<String, Byte> entries = new LinkedHashMap<>();
+
+        protected Builder() {
+        }
+
+        /**
+         * @param name a DNS name that should match only itself or a name
+         *             prefixed with <code>*.</code> that should match only
+         *             subdomains
+         * @return this builder
+         * @throws IllegalArgumentException if the name is empty
+         */
+        public Builder add(final String name) {
+            String normalised = name.trim().toLowerCase(Locale.ENGLISH);
+            if (normalised.endsWith(".")) {
+                normalised = normalised.substring(0, normalised.length() - 1);
+            }
+            final boolean subdomainsOnly = normalised.startsWith("*.");
+            if (subdomainsOnly) {
+                normalised = normalised.substring(2);
+            }
+            if (normalised.isEmpty() || normalised.startsWith(".") || normalised.contains("*")) {
+                throw new IllegalArgumentException("Invalid host name: " + name);
+            }
+            entries.merge(normalised, subdomainsOnly ? subdomains : exact, (x, y) -> (byte) (x | y));
+            return this;
+        }
+
+        public Builder addAll(final Collection<String> names) {
+            for (final String name : names) {
+                add(name);
+            }
+            return this;
+        }
+
+        public HostNameSet build() {
+            // keep the load factor at or below one half so that probe sequences stay short
+            int capacity = 2;
+            while (capacity < entries.size() * 2) {
+                capacity <<= 1;
+            }
+            final String[] names = new String[capacity];
+            final int[] hashes = new int[capacity];
+            final byte[] flags = new byte[capacity];
+            final int mask = capacity - 1;
+            for (final Map.Entry<String, Byte> entry : entries.entrySet()) {
+                final String name = entry.getKey();
+                final int hash = name.hashCode();
+                int index = spread(hash) & mask;
+                while (names[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                names[index] = name;
+                hashes[index] = hash;
+                flags[index] = entry.getValue();
+            }
+            return new HostNameSet(names, hashes, flags, entries.size());
+        }
+    }
+
+}
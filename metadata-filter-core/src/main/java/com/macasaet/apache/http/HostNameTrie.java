@@ -0,0 +1,187 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>An immutable, case-insensitive set of DNS names. A name such as
+ * <code>metadata.google.internal</code> matches itself and all of its
+ * subdomains while a name such as <code>*.internal</code> matches only
+ * subdomains.</p>
+ *
+ * <p>Names are stored in a character trie keyed from the last character
+ * to the first, i.e. by the reversed characters of each name rather
+ * than by whole labels. A host name is matched in a single
+ * right-to-left pass without allocating, so the cost depends on the
+ * length of the host name rather than on the number of names.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class HostNameTrie {
+
+    private static final HostNameTrie empty = new HostNameTrie(new Node(false, false, new char[0], new Node[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    protected HostNameTrie(final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static HostNameTrie empty() {
+        return empty;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    /**
+     * @param hostName a DNS name, optionally fully-qualified with a
+     *                 trailing dot
+     * @return true if the name or one of its parent domains is in this
+     *         set
+     */
+    public boolean matches(final String hostName) {
+        int end = hostName.length();
+        if (end > 0 && hostName.charAt(end - 1) == '.') {
+            end--;
+        }
+        Node node = root;
+        for (int i = end; --i >= 0;) {
+            final char c = hostName.charAt(i);
+            if (c == '.' && node.subdomains) {
+                return true;
+            }
+            node = node.child(Character.toLowerCase(c));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.exact;
+    }
+
+    /**
+     * @return the number of names in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    protected static class Node {
+        final boolean exact;
+        final boolean subdomains;
+        final char[] keys;
+        final Node[] children;
+
+        public Node(final boolean exact, final boolean subdomains, final char[] keys, final Node[] children) {
+            this.exact = exact;
+            this.subdomains = subdomains;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        public Node child(final char key) {
+            final int index = Arrays.binarySearch(keys, key);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    /**
+     * Builder for {@link HostNameTrie} instances. Builders are not
+     * thread-safe.
+     */
+    public static class Builder {
+
+        private final MutableNode root = new MutableNode();
+        private int size;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param name a DNS name that should match itself and all of its
+         *             subdomains or a name prefixed with <code>*.</code>
+         *             that should match only subdomains
+         * @return this builder
+         * @throws IllegalArgumentException if the name is empty
+         */
+        public Builder add(final String name) {
+            String normalised = name.trim().toLowerCase(Locale.ENGLISH);
+            if (normalised.endsWith(".")) {
+                normalised = normalised.substring(0, normalised.length() - 1);
+            }
+            final boolean subdomainsOnly = normalised.startsWith("*.");
+            if (subdomainsOnly) {
+                normalised = normalised.substring(2);
+            }
+            if (normalised.isEmpty() || normalised.startsWith(".") || normalised.contains("*")) {
+                throw new IllegalArgumentException("Invalid host name: " + name);
+            }
+            MutableNode node = root;
+            for (int i = normalised.length(); --i >= 0;) {
+                node = node.children.computeIfAbsent(normalised.charAt(i), ignored -> new MutableNode());
+            }
+            if (!node.exact && !node.subdomains) {
+                size++;
+            }
+            node.exact |= !subdomainsOnly;
+            node.subdomains = true;
+            return this;
+        }
+
+        public Builder addAll(final Collection<String> names) {
+            for (final String name : names) {
+                add(name);
+            }
+            return this;
+        }
+
+        public HostNameTrie build() {
+            return new HostNameTrie(root.compile(), size);
+        }
+    }
+
+    protected static class MutableNode {
+        final Map<Character, MutableNode> children = new TreeMap<>();
+        boolean exact;
+        boolean subdomains;
+
+        public Node compile() {
+            final char[] keys = new char[children.size()];
+            final Node[] compiled = new Node[children.size()];
+            int i = 0;
+            for (final Map.Entry<Character, MutableNode> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                compiled[i++] = entry.getValue().compile();
+            }
+            return new Node(exact, subdomains, keys, compiled);
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A concurrent histogram of durations. Each power of two is divided
+ * into eight buckets, so reported percentiles are within 12.5% of the
+ * recorded values. Recording a value updates one striped counter and
+ * does not allocate or take a lock; the cost of summarising the
+ * distribution is borne by the reader.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class LatencyHistogram {
+
+    private static final int subBucketBits = 3;
+    private static final int subBuckets = 1 << subBucketBits;
+    // enough buckets for every non-negative long
+    private static final int bucketCount = (Long.SIZE - subBucketBits) * subBuckets;
+
+    private final LongAdder[] buckets = new LongAdder[bucketCount];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value a duration; negative values are recorded as zero
+     */
+    public void record(final long value) {
+        final long normalised = value < 0 ? 0 : value;
+        buckets[index(normalised)].increment();
+        max.accumulate(normalised);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        long retval = 0;
+        for (final LongAdder bucket : buckets) {
+            retval += bucket.sum();
+        }
+        return retval;
+    }
+
+    /**
+     * @return the largest value recorded, or zero if none have been
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile a value between 0 and 100 inclusive, e.g.
+     *                   <code>99.9</code>
+     * @return an upper bound on the given percentile of the recorded
+     *         values, or zero if none have been recorded
+     */
+    public long getPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        // read each bucket once so that concurrent updates cannot skew the result
+        final long[] counts = new long[bucketCount];
+        long total = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int index(final long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        final int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - subBucketBits;
+        // the leading one bit is implied by the shift
+        final int subBucket = (int) (value >>> shift) & (subBuckets - 1);
+        return (shift + 1) * subBuckets + subBucket;
+    }
+
+    static long upperBound(final int index) {
+        if (index < subBuckets) {
+            return index;
+        }
+        final int shift = index / subBuckets - 1;
+        final long lowerBound = (long) (subBuckets + index % subBuckets) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>The well-known metadata endpoints of cloud providers, such as
+ * Alibaba Cloud's <code>100.100.100.200</code>, Oracle Cloud's
+ * <code>192.0.0.192</code>, and Amazon EC2's <code>fd00:ec2::254</code>,
+ * many of which lie outside the link local ranges.</p>
+ *
+ * <p>The endpoints are maintained in
+ * <code>metadata-filter-codegen/src/main/catalog/metadata-endpoints.txt</code>,
+ * which is compiled into pre-sorted tables when the project is built, so
+ * nothing is read or parsed when this class is loaded. Addresses are
+ * found by binary search.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class MetadataEndpoints {
+
+    /**
+     * Metadata host names in ascending order. Subdomains of these names
+     * are metadata endpoints as well.
+     */
+    public static final List<String> hostNames = unmodifiableList(asList(MetadataEndpointTable.hostNames.clone()));
+
+    protected MetadataEndpoints() {
+    }
+
+    /**
+     * @param address a candidate address
+     * @return true if the address is a metadata endpoint
+     */
+    public static boolean isMetadataAddress(final InetAddress address) {
+        final ByteBuffer bytes = ByteBuffer.wrap(address.getAddress());
+        if (address instanceof Inet4Address) {
+            return isMetadataIpv4Address(bytes.getInt());
+        }
+        return isMetadataIpv6Address(bytes.getLong(), bytes.getLong());
+    }
+
+    /**
+     * @param address a candidate IPv4 address as a 32-bit value
+     * @return true if the address is a metadata endpoint
+     */
+    public static boolean isMetadataIpv4Address(final int address) {
+        final int[] networks = MetadataEndpointTable.ipv4Networks;
+        // find the last network that starts at or before the address
+        int low = 0;
+        int high = networks.length - 1;
+        int candidate = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (Integer.compareUnsigned(networks[middle], address) <= 0) {
+                candidate = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (candidate < 0) {
+            return false;
+        }
+        final int prefixLength = MetadataEndpointTable.ipv4PrefixLengths[candidate];
+        final int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        return (address & mask) == networks[candidate];
+    }
+
+    /**
+     * @param high the first 64 bits of a candidate IPv6 address
+     * @param low the last 64 bits of a candidate IPv6 address
+     * @return true if the address is a metadata endpoint
+     */
+    public static boolean isMetadataIpv6Address(final long high, final long low) {
+        final long[] networks = MetadataEndpointTable.ipv6Networks;
+        // networks are stored as pairs, so search by pair index
+        int first = 0;
+        int last = networks.length / 2 - 1;
+        int candidate = -1;
+        while (first <= last) {
+            final int middle = (first + last) >>> 1;
+            int comparison = Long.compareUnsigned(networks[2 * middle], high);
+            if (comparison == 0) {
+                comparison = Long.compareUnsigned(networks[2 * middle + 1], low);
+            }
+            if (comparison <= 0) {
+                candidate = middle;
+                first = middle + 1;
+            } else {
+                last = middle - 1;
+            }
+        }
+        if (candidate < 0) {
+            return false;
+        }
+        final int prefixLength = MetadataEndpointTable.ipv6PrefixLengths[candidate];
+        return (high & mask(prefixLength)) == networks[2 * candidate]
+                && (low & mask(prefixLength - 64)) == networks[2 * candidate + 1];
+    }
+
+    protected static long mask(final int prefixLength) {
+        if (prefixLength <= 0) {
+            return 0L;
+        }
+        return prefixLength >= 64 ? -1L : -1L << (64 - prefixLength);
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+/**
+ * <p>The outcome of checking a single target host.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public enum Verdict {
+
+    /**
+     * The host may be contacted.
+     */
+    ALLOWED,
+    /**
+     * The host name matches a blocked name.
+     */
+    BLOCKED_BY_NAME,
+    /**
+     * The host is, or resolves to, a blocked address.
+     */
+    BLOCKED_BY_ADDRESS,
+    /**
+     * The host name could not be resolved, so the request failed.
+     */
+    RESOLUTION_FAILURE,
+
+}
@@ -0,0 +1,239 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>A bounded cache of allow/deny verdicts keyed by host name. Entries
+ * expire after a configurable time-to-live that differs for allowed and
+ * blocked hosts. Because verdicts are derived from DNS results, neither
+ * time-to-live may exceed the JVM's own positive DNS cache policy
+ * ({@code networkaddress.cache.ttl}).</p>
+ *
+ * <p>The cache is split into independently-locked segments, each of
+ * which evicts its least-recently-used entry when full. This keeps
+ * contention low without giving up a strict size bound.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class VerdictCache {
+
+    private static final int segmentCount = 16;
+    // the JDK default when no security manager is installed
+    private static final long defaultDnsTtlSeconds = 30;
+
+    private final Segment[] segments = new Segment[segmentCount];
+    private final long allowedTtlNanos;
+    private final long blockedTtlNanos;
+    private final LongSupplier ticker;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize the maximum number of host names to retain
+     * @param allowedTtl how long to remember that a host is allowed
+     * @param blockedTtl how long to remember that a host is blocked
+     * @param unit the unit for both time-to-live values
+     */
+    public VerdictCache(final int maximumSize, final long allowedTtl, final long blockedTtl, final TimeUnit unit) {
+        this(maximumSize, allowedTtl, blockedTtl, unit, dnsTtlNanos(), System::nanoTime);
+    }
+
+    VerdictCache(final int maximumSize, final long allowedTtl, final long blockedTtl, final TimeUnit unit,
+            final long dnsTtlNanos, final LongSupplier ticker) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        if (allowedTtl < 0 || blockedTtl < 0) {
+            throw new IllegalArgumentException("time-to-live must not be negative");
+        }
+        final int segmentCapacity = Math.max(1, (maximumSize + segmentCount - 1) / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+        // expiry is compared using differences so it must fit in half the range of System.nanoTime()
+        final long ceiling = Math.min(dnsTtlNanos, Long.MAX_VALUE >> 1);
+        this.allowedTtlNanos = Math.min(unit.toNanos(allowedTtl), ceiling);
+        this.blockedTtlNanos = Math.min(unit.toNanos(blockedTtl), ceiling);
+        this.ticker = ticker;
+    }
+
+    /**
+     * @param hostName a case-insensitive host name
+     * @return {@link Boolean#TRUE} if the host was recently allowed,
+     *         {@link Boolean#FALSE} if it was recently blocked, or
+     *         <code>null</code> if there is no current verdict
+     */
+    public Boolean get(final String hostName) {
+        return get(hostName, null);
+    }
+
+    /**
+     * @param hostName a case-insensitive host name
+     * @param generation the rule set the verdict must have been derived
+     *                   from, compared by identity
+     * @return {@link Boolean#TRUE} if the host was recently allowed,
+     *         {@link Boolean#FALSE} if it was recently blocked, or
+     *         <code>null</code> if there is no current verdict
+     */
+    public Boolean get(final String hostName, final Object generation) {
+        final String key = normalise(hostName);
+        final Segment segment = segmentFor(key);
+        final CachedVerdict entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && (entry.generation != generation || ticker.getAsLong() - entry.expiresAt >= 0)) {
+                segment.remove(key);
+                misses.increment();
+                return null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.permitted;
+    }
+
+    /**
+     * @param hostName a case-insensitive host name
+     * @param permitted whether or not connections to the host are allowed
+     */
+    public void put(final String hostName, final boolean permitted) {
+        put(hostName, null, permitted);
+    }
+
+    /**
+     * @param hostName a case-insensitive host name
+     * @param generation the rule set from which the verdict was derived
+     * @param permitted whether or not connections to the host are allowed
+     */
+    public void put(final String hostName, final Object generation, final boolean permitted) {
+        final long ttl = permitted ? allowedTtlNanos : blockedTtlNanos;
+        if (ttl <= 0) {
+            return;
+        }
+        final String key = normalise(hostName);
+        final CachedVerdict entry = new CachedVerdict(permitted, generation, ticker.getAsLong() + ttl);
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    public void clear() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int retval = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                retval += segment.size();
+            }
+        }
+        return retval;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    protected Segment segmentFor(final String key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segmentCount - 1)];
+    }
+
+    protected static String normalise(final String hostName) {
+        // returns the same instance when there is nothing to convert
+        return hostName.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the JVM's positive DNS cache time-to-live in nanoseconds or
+     *         {@link Long#MAX_VALUE} if successful lookups are cached
+     *         forever
+     */
+    static long dnsTtlNanos() {
+        String value = Security.getProperty("networkaddress.cache.ttl");
+        if (value == null) {
+            value = System.getProperty("sun.net.inetaddr.ttl");
+        }
+        long seconds = defaultDnsTtlSeconds;
+        if (value != null) {
+            try {
+                seconds = Long.parseLong(value.trim());
+            } catch (final NumberFormatException nfe) {
+                // the JDK also falls back to its default
+            }
+        }
+        return seconds < 0 ? Long.MAX_VALUE : TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    protected static class CachedVerdict {
+        final boolean permitted;
+        final Object generation;
+        final long expiresAt;
+
+        public CachedVerdict(final boolean permitted, final Object generation, final long expiresAt) {
+            this.permitted = permitted;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    protected class Segment extends LinkedHashMap<String, CachedVerdict> {
+        private static final long serialVersionUID = -3434212520735186413L;
+        private final int capacity;
+
+        public Segment(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedVerdict> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
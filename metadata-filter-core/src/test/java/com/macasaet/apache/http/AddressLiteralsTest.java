@@ -0,0 +1,268 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link AddressLiterals} and for the handling of IP address
+ * literals by {@link FilterEngine}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AddressLiteralsTest {
+
+    private static final int iterations = 100_000;
+
+    private final FilterEngine engine = FilterEngine.custom()
+            .setResolver(host -> {
+                throw new AssertionError("Literal was resolved: " + host);
+            })
+            .setAddressRanges(AddressRangeTrie.custom().block("fd00:ec2::254").block("192.0.0.192").build())
+            .build();
+
+    @ParameterizedTest
+    @CsvSource({
+            "169.254.169.254, 169.254.169.254, 169.254.169.254",
+            "2852039166, 169.254.169.254, 169.254.169.254",
+            "0xA9FEA9FE, 169.254.169.254, ",
+            "0251.0376.0251.0376, 169.254.169.254, ",
+            "08, , 0.0.0.8",
+            "0xA9.0376.0xA9.0376, 169.254.169.254, ",
+            "169.16689662, 169.254.169.254, 169.254.169.254",
+            "169.254.43518, 169.254.169.254, 169.254.169.254",
+            "010.0.0.1, 8.0.0.1, 10.0.0.1",
+            "0, 0.0.0.0, 0.0.0.0",
+            "4294967295, 255.255.255.255, 255.255.255.255",
+    })
+    public final void verifyIpv4Forms(final String literal, final String inetAton, final String decimal)
+            throws Exception {
+        assertEquals(toLong(inetAton), AddressLiterals.parseIpv4(literal, 0, literal.length(), true));
+        assertEquals(toLong(decimal), AddressLiterals.parseIpv4(literal, 0, literal.length(), false));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            ".",
+            "1.2.3.4.",
+            ".1.2.3",
+            "1..2.3",
+            "1.2.3.4.5",
+            "256.1.1.1",
+            "1.2.3.256",
+            "4294967296",
+            "0x",
+            "0xDEADBEEFA9FEA9FE",
+            "example.com",
+            "1password.com",
+            "١.2.3.4", // Arabic-Indic digit one
+    })
+    public final void verifyInvalidIpv4LiteralsAreRejected(final String literal) {
+        assertEquals(-1L, AddressLiterals.parseIpv4(literal, 0, literal.length(), true));
+        assertEquals(-1L, AddressLiterals.parseIpv4(literal, 0, literal.length(), false));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "::",
+            "::1",
+            "1::",
+            "fd00:ec2::254",
+            "FE80::1",
+            "fe80:0:0:0:0:0:0:1",
+            "2001:db8:85a3:8d3:1319:8a2e:370:7348",
+            "2001:db8::8a2e:370:7348",
+            "1:2:3:4:5:6:7::",
+            "::2:3:4:5:6:7:8",
+            "::ffff:169.254.169.254",
+            "::169.254.169.254",
+            "64:ff9b::192.0.0.192",
+            "1:2:3:4:5:6:1.2.3.4",
+    })
+    public final void verifyIpv6LiteralsMatchInetAddress(final String literal) throws Exception {
+        // given
+        final long[] address = new long[2];
+        final byte[] expected = toIpv6(InetAddress.getByName(literal).getAddress());
+
+        // when
+        final boolean result = AddressLiterals.parseIpv6(literal, 0, literal.length(), address);
+
+        // then
+        assertTrue(result);
+        assertArrayEquals(expected, ByteBuffer.allocate(16).putLong(address[0]).putLong(address[1]).array());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            ":",
+            ":::",
+            ":1",
+            "1:",
+            "1:::2",
+            "1::2::3",
+            "12345::",
+            "1:2:3:4:5:6:7:8:9",
+            "1::2:3:4:5:6:7:8",
+            "1:2:3:4:5:6:7",
+            "::g",
+            "::1.2.3",
+            "::1.2.3.256",
+            "1:2:3:4:5:6:7:1.2.3.4",
+            "fe80::1%eth0",
+    })
+    public final void verifyInvalidIpv6LiteralsAreRejected(final String literal) {
+        assertFalse(AddressLiterals.parseIpv6(literal, 0, literal.length(), new long[2]));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "169.254.169.254, BLOCKED_BY_ADDRESS",
+            "2852039166, BLOCKED_BY_ADDRESS",
+            "0xA9FEA9FE, BLOCKED_BY_ADDRESS",
+            "0251.0376.0251.0376, BLOCKED_BY_ADDRESS",
+            "010.0.0.1, BLOCKED_BY_ADDRESS",
+            "192.0.0.192, BLOCKED_BY_ADDRESS",
+            "93.184.216.34, ALLOWED",
+            "fd00:ec2::254, BLOCKED_BY_ADDRESS",
+            "[fd00:ec2::254], BLOCKED_BY_ADDRESS",
+            "::ffff:169.254.169.254, BLOCKED_BY_ADDRESS",
+            "::ffff:7f00:1, BLOCKED_BY_ADDRESS",
+            "fe80::1, BLOCKED_BY_ADDRESS",
+            "::1, BLOCKED_BY_ADDRESS",
+            "2606:2800:220:1:248:1893:25c8:1946, ALLOWED",
+    })
+    public final void verifyLiteralsAreNotResolved(final String literal, final Verdict expected) throws Exception {
+        assertEquals(expected, engine.check(literal));
+    }
+
+    @Test
+    public final void verifyRawAddressRulesMatchInetAddressRules() throws Exception {
+        // given
+        final FilterPolicy policy = engine.getPolicy();
+        final String[] literals = { "0.0.0.0", "127.0.0.1", "10.1.2.3", "172.16.0.1", "172.32.0.1", "192.168.1.1",
+                "169.254.0.1", "93.184.216.34", "192.0.0.192", "::", "::1", "fe80::1", "febf::1", "fec0::1",
+                "ff02::1", "fd00:ec2::254", "2606:2800:220:1:248:1893:25c8:1946", };
+
+        for (final String literal : literals) {
+            // when
+            final InetAddress address = InetAddress.getByName(literal);
+            final boolean result;
+            if (literal.indexOf(':') < 0) {
+                result = policy.isBlockedIpv4Address((int) AddressLiterals.parseIpv4(literal, 0, literal.length(),
+                        false));
+            } else {
+                final long[] raw = new long[2];
+                AddressLiterals.parseIpv6(literal, 0, literal.length(), raw);
+                result = policy.isBlockedIpv6Address(raw[0], raw[1]);
+            }
+
+            // then
+            assertEquals(policy.isBlockedAddress(address), result, literal);
+        }
+    }
+
+    @Test
+    public final void verifyParsingDoesNotAllocate() {
+        // given
+        final com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        final long[] address = new long[2];
+        long checksum = 0L;
+        final long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        // when
+        for (int i = 0; i < iterations; i++) {
+            checksum += AddressLiterals.parseIpv4("0251.0376.0251.0376", 0, 19, true);
+            checksum += AddressLiterals.parseIpv4("2852039166", 0, 10, false);
+            if (AddressLiterals.parseIpv6("::ffff:169.254.169.254", 0, 22, address)) {
+                checksum += address[1];
+            }
+        }
+        final long result = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        // then
+        assertTrue(checksum != 0L);
+        // allow for incidental allocation by the measurement itself, far less than one byte per iteration
+        assertTrue(result < 4096, "Allocated " + result + " bytes");
+    }
+
+    @Test
+    public final void verifyCheckingLiteralsDoesNotAllocate() throws Exception {
+        // given
+        final com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        // initialise the per-thread state
+        engine.check("fd00:ec2::254");
+        int blocked = 0;
+        final long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        // when
+        for (int i = 0; i < iterations; i++) {
+            blocked += engine.check("169.254.169.254") == Verdict.BLOCKED_BY_ADDRESS ? 1 : 0;
+            blocked += engine.check("fd00:ec2::254") == Verdict.BLOCKED_BY_ADDRESS ? 1 : 0;
+            blocked += engine.check("93.184.216.34") == Verdict.BLOCKED_BY_ADDRESS ? 1 : 0;
+        }
+        final long result = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        // then
+        assertEquals(2 * iterations, blocked);
+        assertTrue(result < 4096, "Allocated " + result + " bytes");
+    }
+
+    protected com.sun.management.ThreadMXBean getThreadMXBean() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "allocation cannot be measured");
+        final com.sun.management.ThreadMXBean retval = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(retval.isThreadAllocatedMemorySupported() && retval.isThreadAllocatedMemoryEnabled(),
+                "allocation cannot be measured");
+        return retval;
+    }
+
+    protected static long toLong(final String dottedQuad) throws Exception {
+        if (dottedQuad == null) {
+            return -1L;
+        }
+        return ByteBuffer.wrap(InetAddress.getByName(dottedQuad).getAddress()).getInt() & 0xFFFFFFFFL;
+    }
+
+    protected static byte[] toIpv6(final byte[] address) {
+        if (address.length == 16) {
+            return address;
+        }
+        // InetAddress converts IPv4-mapped addresses to IPv4
+        final byte[] retval = new byte[16];
+        retval[10] = (byte) 0xFF;
+        retval[11] = (byte) 0xFF;
+        System.arraycopy(address, 0, retval, 12, 4);
+        return retval;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static com.macasaet.apache.http.AddressRangeTrie.Rule.ALLOW;
+import static com.macasaet.apache.http.AddressRangeTrie.Rule.BLOCK;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link AddressRangeTrie}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AddressRangeTrieTest {
+
+    private final AddressRangeTrie trie = AddressRangeTrie.custom()
+            .block("100.64.0.0/10")
+            .allow("100.100.0.0/16")
+            .block("100.100.100.200")
+            .block("192.0.0.192/32")
+            .block("fd00:ec2::254")
+            .allow("fd00::/8")
+            .block("fd00:ec2::/32")
+            .build();
+
+    @Test
+    public final void verifyMostSpecificRangeWins() throws UnknownHostException {
+        assertEquals(BLOCK, trie.match(InetAddress.getByName("100.64.0.1")));
+        assertEquals(BLOCK, trie.match(InetAddress.getByName("100.127.255.255")));
+        assertEquals(ALLOW, trie.match(InetAddress.getByName("100.100.100.199")));
+        assertEquals(BLOCK, trie.match(InetAddress.getByName("100.100.100.200")));
+        assertEquals(BLOCK, trie.match(InetAddress.getByName("192.0.0.192")));
+        assertEquals(BLOCK, trie.match(InetAddress.getByName("fd00:ec2::254")));
+        assertEquals(BLOCK, trie.match(InetAddress.getByName("fd00:ec2::1")));
+        assertEquals(ALLOW, trie.match(InetAddress.getByName("fd00:ec3::254")));
+        assertEquals(7, trie.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "100.63.255.255", "100.128.0.0", "192.0.0.193", "93.184.216.34", "fe80::1", "::1" })
+    public final void verifyUnmatchedAddresses(final String address) throws UnknownHostException {
+        assertNull(trie.match(InetAddress.getByName(address)));
+    }
+
+    @Test
+    public final void verifyHostBitsAreIgnored() throws UnknownHostException {
+        // given
+        final AddressRangeTrie result = AddressRangeTrie.custom().block("10.1.2.3/8").build();
+
+        // when / then
+        assertEquals(BLOCK, result.match(InetAddress.getByName("10.200.0.1")));
+    }
+
+    @Test
+    public final void verifyCatchAllRange() throws UnknownHostException {
+        // given
+        final AddressRangeTrie result = AddressRangeTrie.custom().block("0.0.0.0/0").allow("93.184.216.0/24").build();
+
+        // when / then
+        assertEquals(BLOCK, result.match(InetAddress.getByName("1.1.1.1")));
+        assertEquals(ALLOW, result.match(InetAddress.getByName("93.184.216.34")));
+        assertNull(result.match(InetAddress.getByName("2001:db8::1")));
+    }
+
+    @Test
+    public final void verifyMappedRangeIsTreatedAsIpv4() throws UnknownHostException {
+        // given
+        final AddressRangeTrie result = AddressRangeTrie.custom().block("::ffff:169.254.0.0/16").build();
+
+        // when / then
+        assertEquals(BLOCK, result.match(InetAddress.getByName("169.254.169.254")));
+        assertNull(result.match(InetAddress.getByName("fd00:ec2::254")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "localhost", "10.0.0.0/33", "fd00::/129", "10.0.0.0/-1", "10.0.0/8", "10.0.0.0/x",
+            "10.0.0.256", "zz:1", "metadata.internal:80", "fe80::1%eth0", "[fd00::1]", "fd00::1::2" })
+    public final void verifyInvalidRangesAreRejected(final String range) {
+        assertThrows(IllegalArgumentException.class, () -> AddressRangeTrie.custom().block(range));
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link FilterEngine}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilterEngineTest {
+
+    private final Map<String, InetAddress> hosts = new HashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AddressResolver resolver = host -> {
+        lookups.incrementAndGet();
+        final InetAddress address = hosts.get(host);
+        if (address == null) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[] { address };
+    };
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        hosts.put("public.example", InetAddress.getByName("93.184.216.34"));
+        hosts.put("metadata.example", InetAddress.getByName("169.254.169.254"));
+    }
+
+    @Test
+    public final void verifyRulesAreAppliedInOrder() throws Exception {
+        // given
+        final FilterEngine engine = FilterEngine.custom().setResolver(resolver).build();
+
+        // when
+        final Verdict[] result = new Verdict[] {
+                engine.check("metadata.google.internal"),
+                engine.check("public.example", InetAddress.getByName("169.254.169.254")),
+                engine.check("metadata.example"),
+                engine.check("public.example"),
+        };
+
+        // then
+        assertEquals(Arrays.asList(Verdict.BLOCKED_BY_NAME, Verdict.BLOCKED_BY_ADDRESS, Verdict.BLOCKED_BY_ADDRESS,
+                Verdict.ALLOWED), Arrays.asList(result));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public final void verifyCachedVerdictSkipsLookup() throws Exception {
+        // given
+        final FilterEngine engine = FilterEngine.custom()
+                .setResolver(resolver)
+                .setVerdictCache(new VerdictCache(16, 1, 1, TimeUnit.MINUTES))
+                .build();
+        engine.check("metadata.example");
+
+        // when
+        final Verdict result = engine.check("metadata.example");
+
+        // then
+        assertEquals(Verdict.BLOCKED_BY_ADDRESS, result);
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public final void verifyNameEvaluationDefersUnknownHosts() throws Exception {
+        // given
+        final FilterEngine engine = FilterEngine.custom().setResolver(resolver).build();
+        final FilterPolicy policy = engine.getPolicy();
+
+        // when
+        final Verdict deferred = engine.evaluateName(policy, "public.example", null);
+        final Verdict result = engine.evaluateAddresses(policy, "public.example", resolver.resolve("public.example"));
+
+        // then
+        assertNull(deferred);
+        assertEquals(Verdict.ALLOWED, result);
+    }
+
+    @Test
+    public final void verifyListenersAreNotified() {
+        // given
+        final List<String> events = new ArrayList<>();
+        final FilterListener first = (hostName, verdict, elapsedNanos) -> events.add("first " + verdict);
+        final FilterListener second = new FilterListener() {
+            public void onDecision(final String hostName, final Verdict verdict, final long elapsedNanos) {
+                events.add("second " + verdict);
+            }
+
+            public void onResolution(final String hostName, final long elapsedNanos) {
+                events.add("second resolved " + hostName);
+            }
+        };
+        final FilterEngine engine = FilterEngine.custom()
+                .setResolver(resolver)
+                .addListener(first)
+                .addListener(second)
+                .build();
+
+        // when
+        assertThrows(UnknownHostException.class, () -> engine.check("unknown.example"));
+
+        // then
+        assertEquals(Arrays.asList("second resolved unknown.example", "first RESOLUTION_FAILURE",
+                "second RESOLUTION_FAILURE"), events);
+    }
+
+    @Test
+    public final void verifyNullListenerIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> FilterEngine.custom().addListener(null));
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link FilterMetrics} and {@link FilterListener}
+ * notifications.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilterMetricsTest {
+
+    private final Map<String, InetAddress> hosts = new HashMap<>();
+    private final AddressResolver resolver = host -> {
+        final InetAddress address = hosts.get(host);
+        if (address == null) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[] { address };
+    };
+    private final FilterMetrics metrics = new FilterMetrics();
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        hosts.put("public.example", InetAddress.getByName("93.184.216.34"));
+        hosts.put("metadata.example", InetAddress.getByName("169.254.169.254"));
+    }
+
+    @Test
+    public final void verifyDecisionsAreCountedByVerdict() {
+        // given
+        final FilterEngine engine = FilterEngine.custom().setResolver(resolver).addListener(metrics).build();
+
+        // when
+        tryCheck(engine, "public.example");
+        tryCheck(engine, "public.example");
+        tryCheck(engine, "metadata.google.internal");
+        tryCheck(engine, "metadata.example");
+        tryCheck(engine, "unknown.example");
+
+        // then
+        assertEquals(2, metrics.getAllowedCount());
+        assertEquals(1, metrics.getBlockedByNameCount());
+        assertEquals(1, metrics.getBlockedByAddressCount());
+        assertEquals(1, metrics.getResolutionFailureCount());
+        assertEquals(5, metrics.getDecisionLatency().getCount());
+        // the name check does not require a lookup
+        assertEquals(4, metrics.getResolutionCount());
+    }
+
+    @Test
+    public final void verifyCachedVerdictsAreReported() {
+        // given
+        final FilterEngine engine = FilterEngine.custom().setResolver(resolver)
+                .setVerdictCache(new VerdictCache(16, 1, 1, TimeUnit.MINUTES)).addListener(metrics).build();
+
+        // when
+        tryCheck(engine, "metadata.example");
+        tryCheck(engine, "metadata.example");
+
+        // then
+        assertEquals(2, metrics.getBlockedByAddressCount());
+        assertEquals(1, metrics.getResolutionCount());
+    }
+
+    @Test
+    public final void verifyAllListenersAreNotified() {
+        // given
+        final List<Verdict> verdicts = new ArrayList<>();
+        final FilterEngine engine = FilterEngine.custom().setResolver(resolver).addListener(metrics)
+                .addListener((hostName, verdict, elapsedNanos) -> verdicts.add(verdict)).build();
+
+        // when
+        tryCheck(engine, "metadata.example");
+
+        // then
+        assertEquals(1, metrics.getBlockedByAddressCount());
+        assertEquals(1, verdicts.size());
+        assertEquals(Verdict.BLOCKED_BY_ADDRESS, verdicts.get(0));
+    }
+
+    @Test
+    public final void verifyMetricsCanBeReadOverJmx() throws JMException {
+        // given
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.onDecision("metadata.example", Verdict.BLOCKED_BY_ADDRESS, 1_000);
+        final ObjectName name = metrics.register("test");
+        try {
+            // when
+            final Object result = server.getAttribute(name, "BlockedByAddressCount");
+
+            // then
+            assertEquals(1L, result);
+            assertEquals(1_000L, server.getAttribute(name, "DecisionLatencyMax"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    protected void tryCheck(final FilterEngine engine, final String hostName) {
+        try {
+            engine.check(hostName);
+        } catch (final IOException ioe) {
+            // the outcome is recorded by the listener
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link HostNameSet} and for trusted host names in
+ * {@link FilterEngine}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class HostNameSetTest {
+
+    private final HostNameSet set = HostNameSet.custom()
+            .add("Api.Partner.Example")
+            .add("*.cdn.example")
+            .add("internal.example")
+            .add("*.internal.example")
+            .build();
+
+    private final AtomicInteger lookups = new AtomicInteger();
+    // every name the filter resolves is internal
+    private final AddressResolver resolver = host -> {
+        lookups.incrementAndGet();
+        return new InetAddress[] { InetAddress.getByName("10.0.0.1") };
+    };
+    private final FilterEngine engine = FilterEngine.custom()
+            .setResolver(resolver)
+            .setTrustedHosts(set)
+            .build();
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "api.partner.example",
+            "API.PARTNER.EXAMPLE.",
+            "a.cdn.example",
+            "a.b.cdn.example",
+            "internal.example",
+            "db.internal.example",
+    })
+    public final void verifyMatches(final String hostName) {
+        assertTrue(set.matches(hostName));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "example",
+            "partner.example",
+            "www.api.partner.example",
+            "xapi.partner.example",
+            "cdn.example",
+            "xcdn.example",
+            "a.xcdn.example",
+            "cdn.example.evil",
+    })
+    public final void verifyNonMatches(final String hostName) {
+        assertFalse(set.matches(hostName));
+    }
+
+    @Test
+    public final void verifyLargeSetMatchesEveryName() {
+        // given
+        final HostNameSet.Builder builder = HostNameSet.custom();
+        for (int i = 0; i < 1000; i++) {
+            builder.add("host-" + i + ".example");
+        }
+
+        // when
+        final HostNameSet result = builder.build();
+
+        // then
+        assertEquals(1000, result.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(result.matches("host-" + i + ".example"));
+        }
+        assertFalse(result.matches("host-1000.example"));
+    }
+
+    @Test
+    public final void verifySizeCountsDistinctNames() {
+        assertEquals(3, set.size());
+        assertTrue(HostNameSet.empty().isEmpty());
+        assertFalse(HostNameSet.empty().matches("example"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "", ".", "*.", ".example.com", "*.*.example.com", "www.*.example.com" })
+    public final void verifyInvalidNamesAreRejected(final String name) {
+        assertThrows(IllegalArgumentException.class, () -> HostNameSet.custom().add(name));
+    }
+
+    @Test
+    public final void verifyTrustedHostIsNotResolved() throws Exception {
+        // when
+        final Verdict[] result = new Verdict[] {
+                engine.check("api.partner.example"),
+                engine.check("a.cdn.example"),
+                engine.check("cdn.example"),
+        };
+
+        // then
+        assertEquals(Arrays.asList(Verdict.ALLOWED, Verdict.ALLOWED, Verdict.BLOCKED_BY_ADDRESS),
+                Arrays.asList(result));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public final void verifyExplicitAddressOfTrustedHostIsChecked() throws Exception {
+        // given
+        final InetAddress address = InetAddress.getByName("169.254.169.254");
+
+        // when
+        final Verdict result = engine.check("api.partner.example", address);
+
+        // then
+        assertEquals(Verdict.BLOCKED_BY_ADDRESS, result);
+    }
+
+    @Test
+    public final void verifyTrustedHostsTakePrecedenceOverBlockedHosts() throws Exception {
+        // given
+        final Properties properties = new Properties();
+        properties.setProperty(FilterPolicy.blockedHostsKey, "*.internal");
+        properties.setProperty(FilterPolicy.trustedHostsKey, "billing.internal, *.shared.internal");
+        final FilterPolicy policy = FilterPolicy.parse(properties);
+        final FilterEngine engine = FilterEngine.custom()
+                .setResolver(resolver)
+                .setPolicy(() -> policy)
+                .build();
+
+        // when
+        final Verdict[] result = new Verdict[] {
+                engine.check("billing.internal"),
+                engine.check("a.shared.internal"),
+                engine.check("payroll.internal"),
+        };
+
+        // then
+        assertEquals(Arrays.asList(Verdict.ALLOWED, Verdict.ALLOWED, Verdict.BLOCKED_BY_NAME), Arrays.asList(result));
+        assertEquals(0, lookups.get());
+    }
+
+}
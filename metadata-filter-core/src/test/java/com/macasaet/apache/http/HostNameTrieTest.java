@@ -0,0 +1,87 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link HostNameTrie}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class HostNameTrieTest {
+
+    private final HostNameTrie trie = HostNameTrie.custom()
+            .addAll(FilterPolicy.defaultBlockedHosts)
+            .add("*.corp")
+            .add("Tenant-42.Example.COM")
+            .build();
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "instance-data",
+            "INSTANCE-DATA",
+            "instance-data.",
+            "foo.instance-data",
+            "metadata.google.internal",
+            "Metadata.Google.Internal.",
+            "a.b.metadata.google.internal",
+            "payroll.corp",
+            "tenant-42.example.com",
+            "api.tenant-42.example.com",
+    })
+    public final void verifyMatches(final String hostName) {
+        assertTrue(trie.matches(hostName));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "corp",
+            "corporate",
+            "internal",
+            "google.internal",
+            "xmetadata.google.internal",
+            "instance-data.example.com",
+            "tenant-43.example.com",
+            "example.com",
+    })
+    public final void verifyNonMatches(final String hostName) {
+        assertFalse(trie.matches(hostName));
+    }
+
+    @Test
+    public final void verifySizeCountsDistinctNames() {
+        assertEquals(FilterPolicy.defaultBlockedHosts.size() + 2, trie.size());
+        assertEquals(1, HostNameTrie.custom().add("a.example").add("A.EXAMPLE.").build().size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "", ".", "*.", ".example.com", "*.*.example.com", "www.*.example.com" })
+    public final void verifyInvalidNamesAreRejected(final String name) {
+        assertThrows(IllegalArgumentException.class, () -> HostNameTrie.custom().add(name));
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class LatencyHistogramTest {
+
+    @ParameterizedTest
+    @ValueSource(longs = { 0, 1, 7, 8, 9, 15, 16, 1_000, 123_456_789, Long.MAX_VALUE })
+    public final void verifyBucketContainsValue(final long value) {
+        // when
+        final long result = LatencyHistogram.upperBound(LatencyHistogram.index(value));
+
+        // then
+        assertTrue(result >= value);
+        // each bucket spans at most one eighth of its lower bound
+        assertTrue(result - value <= value / 8, "upper bound " + result + " is too far from " + value);
+    }
+
+    @Test
+    public final void verifyEmptyHistogramReportsZero() {
+        // given
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        // when / then
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public final void verifyPercentiles() {
+        // given
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1_000; i++) {
+            histogram.record(i * 1_000L);
+        }
+
+        // when
+        final long median = histogram.getPercentile(50);
+        final long tail = histogram.getPercentile(99.9);
+
+        // then
+        assertEquals(1_000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertTrue(median >= 500_000 && median <= 500_000 * 9 / 8, "median: " + median);
+        assertTrue(tail >= 999_000 && tail <= 1_000_000, "99.9th percentile: " + tail);
+    }
+
+}
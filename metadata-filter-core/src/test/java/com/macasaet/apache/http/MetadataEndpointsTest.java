@@ -0,0 +1,158 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link MetadataEndpoints} and the generated
+ * {@link MetadataEndpointTable}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class MetadataEndpointsTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "100.100.100.200",
+            "192.0.0.192",
+            "168.63.129.16",
+            "169.254.169.254",
+            "169.254.170.2",
+            "fd00:ec2::254",
+            "fd00:ec2::23",
+            "fe80::a9fe:a9fe",
+    })
+    public final void verifyMetadataAddresses(final String literal) throws UnknownHostException {
+        // given
+        final InetAddress address = InetAddress.getByName(literal);
+
+        // when / then
+        assertTrue(MetadataEndpoints.isMetadataAddress(address));
+        assertTrue(FilterPolicy.defaultPolicy().isBlockedAddress(address));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "0.0.0.0",
+            "100.100.100.199",
+            "100.100.100.201",
+            "192.0.0.191",
+            "192.0.0.193",
+            "255.255.255.255",
+            "93.184.216.34",
+            "::",
+            "fd00:ec2::253",
+            "fd00:ec2::255",
+            "fd00:ec3::254",
+            "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff",
+            "2606:2800:220:1:248:1893:25c8:1946",
+    })
+    public final void verifyOtherAddresses(final String literal) throws UnknownHostException {
+        assertFalse(MetadataEndpoints.isMetadataAddress(InetAddress.getByName(literal)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "metadata.google.internal",
+            "metadata",
+            "instance-data",
+            "instance-data.ec2.internal",
+            "metadata.tencentyun.com",
+    })
+    public final void verifyMetadataHostNamesAreBlockedByDefault(final String hostName) {
+        assertTrue(FilterPolicy.defaultPolicy().isBlockedHostName(hostName));
+    }
+
+    @Test
+    public final void verifyTablesAreSorted() {
+        final String[] hostNames = MetadataEndpointTable.hostNames;
+        for (int i = 1; i < hostNames.length; i++) {
+            assertTrue(hostNames[i - 1].compareTo(hostNames[i]) < 0, hostNames[i]);
+        }
+        final int[] ipv4 = MetadataEndpointTable.ipv4Networks;
+        assertEquals(ipv4.length, MetadataEndpointTable.ipv4PrefixLengths.length);
+        for (int i = 1; i < ipv4.length; i++) {
+            assertTrue(Integer.compareUnsigned(ipv4[i - 1], ipv4[i]) < 0);
+        }
+        final long[] ipv6 = MetadataEndpointTable.ipv6Networks;
+        assertEquals(ipv6.length, 2 * MetadataEndpointTable.ipv6PrefixLengths.length);
+        for (int i = 2; i < ipv6.length; i += 2) {
+            final int comparison = Long.compareUnsigned(ipv6[i - 2], ipv6[i]);
+            assertTrue(comparison < 0 || comparison == 0 && Long.compareUnsigned(ipv6[i - 1], ipv6[i + 1]) < 0);
+        }
+    }
+
+    @Test
+    public final void verifyMetadataAddressesCanBeExempted() throws UnknownHostException {
+        // given
+        final Properties properties = new Properties();
+        properties.setProperty(FilterPolicy.allowedAddressesKey, "100.100.100.200");
+
+        // when
+        final FilterPolicy result = FilterPolicy.parse(properties);
+
+        // then
+        assertFalse(result.isBlockedAddress(InetAddress.getByName("100.100.100.200")));
+        assertTrue(result.isBlockedAddress(InetAddress.getByName("192.0.0.192")));
+    }
+
+    @Test
+    public final void verifyRawAddressRulesMatchInetAddressRules() throws UnknownHostException {
+        // given
+        final List<String> literals = new ArrayList<>();
+        for (final int network : MetadataEndpointTable.ipv4Networks) {
+            literals.add((network >>> 24) + "." + (network >>> 16 & 0xFF) + "." + (network >>> 8 & 0xFF) + "."
+                    + (network & 0xFF));
+            literals.add((network >>> 24) + "." + (network >>> 16 & 0xFF) + "." + (network >>> 8 & 0xFF) + "."
+                    + ((network & 0xFF) ^ 1));
+        }
+        literals.add("fd00:ec2::254");
+        literals.add("fd00:ec2::255");
+        final FilterPolicy policy = FilterPolicy.defaultPolicy();
+        final long[] raw = new long[2];
+
+        for (final String literal : literals) {
+            // when
+            final boolean result;
+            if (literal.indexOf(':') < 0) {
+                result = policy.isBlockedIpv4Address((int) AddressLiterals.parseIpv4(literal, 0, literal.length(),
+                        false));
+            } else {
+                AddressLiterals.parseIpv6(literal, 0, literal.length(), raw);
+                result = policy.isBlockedIpv6Address(raw[0], raw[1]);
+            }
+
+            // then
+            assertEquals(policy.isBlockedAddress(InetAddress.getByName(literal)), result, literal);
+        }
+    }
+
+}
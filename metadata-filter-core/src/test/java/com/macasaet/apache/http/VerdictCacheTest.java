@@ -0,0 +1,85 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link VerdictCache}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class VerdictCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public final void verifyVerdictsExpire() {
+        // given
+        final VerdictCache cache = new VerdictCache(16, 10, 1, TimeUnit.SECONDS, Long.MAX_VALUE, clock::get);
+        cache.put("allowed.example", true);
+        cache.put("BLOCKED.example", false);
+
+        // when / then
+        assertEquals(Boolean.TRUE, cache.get("Allowed.Example"));
+        assertEquals(Boolean.FALSE, cache.get("blocked.example"));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(Boolean.TRUE, cache.get("allowed.example"));
+        assertNull(cache.get("blocked.example"));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        assertNull(cache.get("allowed.example"));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public final void verifyDnsTtlIsNotExceeded() {
+        // given
+        final VerdictCache cache = new VerdictCache(16, 1, 1, TimeUnit.HOURS, TimeUnit.SECONDS.toNanos(30),
+                clock::get);
+        cache.put("allowed.example", true);
+
+        // when
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+
+        // then
+        assertNull(cache.get("allowed.example"));
+    }
+
+    @Test
+    public final void verifySizeIsBounded() {
+        // given
+        final VerdictCache cache = new VerdictCache(32, 1, 1, TimeUnit.HOURS, Long.MAX_VALUE, clock::get);
+
+        // when
+        for (int i = 0; i < 1024; i++) {
+            cache.put("host" + i + ".example", true);
+        }
+
+        // then
+        assertEquals(32, cache.size());
+        assertEquals(1024 - 32, cache.getEvictionCount());
+    }
+
+}
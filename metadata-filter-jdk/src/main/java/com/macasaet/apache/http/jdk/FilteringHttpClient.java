@@ -0,0 +1,453 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http.jdk;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.PushPromiseHandler;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import com.macasaet.apache.http.FilterEngine;
+import com.macasaet.apache.http.Verdict;
+
+/**
+ * <p>A {@link HttpClient java.net.http.HttpClient} that blocks access to
+ * internal metadata API hosts as well as link local addresses. Every
+ * request, including each redirect, is checked by a {@link FilterEngine}
+ * before it is sent, so a single engine can be shared with the
+ * HttpComponents adapters in the same JVM:</p>
+ *
+ * <pre>
+ * final HttpClient client = FilteringHttpClient.custom()
+ *     .setEngine(engine)
+ *     .setFollowRedirects(HttpClient.Redirect.NORMAL)
+ *     .build(HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)));
+ * </pre>
+ *
+ * <p>The JDK client offers no interceptors and decides on a proxy only
+ * once per request, not per redirect, so redirects are followed by this
+ * client rather than by the underlying one. The underlying client
+ * resolves host names itself; the JVM's DNS cache
+ * (<code>networkaddress.cache.ttl</code>) normally gives it the same
+ * addresses that were checked. Credential headers are not carried over
+ * to a redirect to another origin. WebSockets are not supported.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilteringHttpClient extends HttpClient {
+
+    private static final Set<String> credentialHeaders;
+
+    static {
+        final Set<String> headers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        headers.add("Authorization");
+        headers.add("Proxy-Authorization");
+        headers.add("Cookie");
+        credentialHeaders = Collections.unmodifiableSet(headers);
+    }
+
+    private final Logger log = System.getLogger(getClass().getName());
+    private final HttpClient delegate;
+    private final FilterEngine engine;
+    private final Redirect followRedirects;
+    private final int maxRedirects;
+    private final Executor executor;
+    private final boolean logBlocks;
+
+    /**
+     * @param delegate the client that sends the requests, which must not
+     *                 follow redirects itself
+     * @param engine decides which hosts may be contacted
+     * @param followRedirects the redirect policy of this client
+     * @param maxRedirects the maximum number of redirects to follow for
+     *                     a single request
+     * @param executor the executor on which asynchronous requests are
+     *                 checked, since a check may block on DNS
+     * @param logBlocks whether to log a warning for every blocked
+     *                  request
+     */
+    protected FilteringHttpClient(final HttpClient delegate, final FilterEngine engine,
+            final Redirect followRedirects, final int maxRedirects, final Executor executor,
+            final boolean logBlocks) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        if (delegate.followRedirects() != Redirect.NEVER) {
+            throw new IllegalArgumentException("delegate must not follow redirects");
+        }
+        if (engine == null) {
+            throw new IllegalArgumentException("engine must not be null");
+        }
+        if (followRedirects == null) {
+            throw new IllegalArgumentException("followRedirects must not be null");
+        }
+        if (maxRedirects < 0) {
+            throw new IllegalArgumentException("maxRedirects must not be negative");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        this.delegate = delegate;
+        this.engine = engine;
+        this.followRedirects = followRedirects;
+        this.maxRedirects = maxRedirects;
+        this.executor = executor;
+        this.logBlocks = logBlocks;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public <T> HttpResponse<T> send(final HttpRequest request, final BodyHandler<T> responseBodyHandler)
+            throws IOException, InterruptedException {
+        HttpRequest current = request;
+        for (int redirects = 0;; redirects++) {
+            check(current.uri());
+            final RedirectingBodyHandler<T> handler = new RedirectingBodyHandler<>(current, responseBodyHandler,
+                    redirects);
+            final HttpResponse<T> response = delegate.send(current, handler);
+            if (handler.redirect == null) {
+                return response;
+            }
+            current = handler.redirect;
+        }
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(final HttpRequest request,
+            final BodyHandler<T> responseBodyHandler) {
+        return sendAsync(request, responseBodyHandler, null);
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(final HttpRequest request,
+            final BodyHandler<T> responseBodyHandler, final PushPromiseHandler<T> pushPromiseHandler) {
+        return sendAsync(request, responseBodyHandler, pushPromiseHandler, 0);
+    }
+
+    public Optional<CookieHandler> cookieHandler() {
+        return delegate.cookieHandler();
+    }
+
+    public Optional<Duration> connectTimeout() {
+        return delegate.connectTimeout();
+    }
+
+    public Redirect followRedirects() {
+        return followRedirects;
+    }
+
+    public Optional<ProxySelector> proxy() {
+        return delegate.proxy();
+    }
+
+    public SSLContext sslContext() {
+        return delegate.sslContext();
+    }
+
+    public SSLParameters sslParameters() {
+        return delegate.sslParameters();
+    }
+
+    public Optional<Authenticator> authenticator() {
+        return delegate.authenticator();
+    }
+
+    public Version version() {
+        return delegate.version();
+    }
+
+    public Optional<Executor> executor() {
+        return delegate.executor();
+    }
+
+    /**
+     * @return the engine that decides which hosts may be contacted
+     */
+    public FilterEngine getEngine() {
+        return engine;
+    }
+
+    protected <T> CompletableFuture<HttpResponse<T>> sendAsync(final HttpRequest request,
+            final BodyHandler<T> responseBodyHandler, final PushPromiseHandler<T> pushPromiseHandler,
+            final int redirects) {
+        final RedirectingBodyHandler<T> handler = new RedirectingBodyHandler<>(request, responseBodyHandler,
+                redirects);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                check(request.uri());
+            } catch (final IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+        }, executor).thenCompose(ignored -> delegate.sendAsync(request, handler, pushPromiseHandler))
+                .thenCompose(response -> handler.redirect == null ? CompletableFuture.completedFuture(response)
+                        : sendAsync(handler.redirect, responseBodyHandler, pushPromiseHandler, redirects + 1));
+    }
+
+    /**
+     * @param uri the target of a request
+     * @throws IOException if the host is blocked or cannot be resolved
+     */
+    protected void check(final URI uri) throws IOException {
+        final String host = getHost(uri);
+        if (host == null || engine.check(host) != Verdict.ALLOWED) {
+            if (logBlocks) {
+                log.log(Level.WARNING, "Blocking connection to: " + uri.getScheme() + "://" + uri.getRawAuthority());
+            }
+            throw new UnknownHostException("Blocked host.");
+        }
+    }
+
+    protected String getHost(final URI uri) {
+        final String retval = uri.getHost();
+        // IPv6 literals are enclosed in brackets
+        if (retval != null && retval.startsWith("[") && retval.endsWith("]")) {
+            return retval.substring(1, retval.length() - 1);
+        }
+        return retval;
+    }
+
+    /**
+     * @param request a request that was sent
+     * @param info the response to the request
+     * @param redirects the number of redirects already followed
+     * @return the request to send next or <code>null</code> if the
+     *         response should be returned to the caller
+     */
+    protected HttpRequest getRedirect(final HttpRequest request, final ResponseInfo info, final int redirects) {
+        final int status = info.statusCode();
+        if (followRedirects == Redirect.NEVER || redirects >= maxRedirects
+                || (status != 301 && status != 302 && status != 303 && status != 307 && status != 308)) {
+            return null;
+        }
+        final Optional<String> location = info.headers().firstValue("Location");
+        if (!location.isPresent()) {
+            return null;
+        }
+        final URI target;
+        try {
+            target = request.uri().resolve(location.get());
+        } catch (final IllegalArgumentException iae) {
+            return null;
+        }
+        final String scheme = target.getScheme() != null ? target.getScheme().toLowerCase(Locale.ENGLISH) : null;
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            return null;
+        }
+        if (followRedirects == Redirect.NORMAL && "https".equalsIgnoreCase(request.uri().getScheme())
+                && "http".equals(scheme)) {
+            return null;
+        }
+        // the same method changes as the JDK client
+        final String method;
+        if (status == 303 && !"HEAD".equals(request.method())) {
+            method = "GET";
+        } else if ((status == 301 || status == 302) && "POST".equals(request.method())) {
+            method = "GET";
+        } else {
+            method = request.method();
+        }
+        final BodyPublisher body = method.equals(request.method())
+                ? request.bodyPublisher().orElse(BodyPublishers.noBody())
+                : BodyPublishers.noBody();
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(target)
+                .method(method, body)
+                .expectContinue(request.expectContinue());
+        request.timeout().ifPresent(builder::timeout);
+        request.version().ifPresent(builder::version);
+        // like the JDK client, credentials are only sent to the origin they were meant for
+        final boolean sameOrigin = isSameOrigin(request.uri(), target);
+        for (final Map.Entry<String, List<String>> header : request.headers().map().entrySet()) {
+            if (!sameOrigin && credentialHeaders.contains(header.getKey())) {
+                continue;
+            }
+            for (final String value : header.getValue()) {
+                builder.header(header.getKey(), value);
+            }
+        }
+        return builder.build();
+    }
+
+    protected static boolean isSameOrigin(final URI first, final URI second) {
+        return first.getScheme().equalsIgnoreCase(second.getScheme())
+                && first.getHost() != null && first.getHost().equalsIgnoreCase(second.getHost())
+                && port(first) == port(second);
+    }
+
+    protected static int port(final URI uri) {
+        if (uri.getPort() >= 0) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * Discards the bodies of responses that will be redirected and
+     * delegates all other responses to the caller's handler.
+     */
+    protected class RedirectingBodyHandler<T> implements BodyHandler<T> {
+
+        private final HttpRequest request;
+        private final BodyHandler<T> delegate;
+        private final int redirects;
+        volatile HttpRequest redirect;
+
+        public RedirectingBodyHandler(final HttpRequest request, final BodyHandler<T> delegate,
+                final int redirects) {
+            this.request = request;
+            this.delegate = delegate;
+            this.redirects = redirects;
+        }
+
+        public BodySubscriber<T> apply(final ResponseInfo responseInfo) {
+            redirect = getRedirect(request, responseInfo, redirects);
+            return redirect != null ? BodySubscribers.replacing(null) : delegate.apply(responseInfo);
+        }
+    }
+
+    /**
+     * Lazily creates the default executor so that it is only started if
+     * it is used.
+     */
+    protected static class DefaultExecutorHolder {
+        private static final int threads = 16;
+        static final ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+    }
+
+    protected static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread retval = new Thread(runnable, "metadata-filter-resolver-" + counter.incrementAndGet());
+            retval.setDaemon(true);
+            return retval;
+        }
+    }
+
+    /**
+     * Builder for {@link FilteringHttpClient} instances.
+     */
+    public static class Builder {
+
+        private FilterEngine engine;
+        private Redirect followRedirects = Redirect.NEVER;
+        private int maxRedirects = 5;
+        private Executor executor;
+        private boolean logBlocks = true;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param engine decides which hosts may be contacted and may be
+         *               shared with other clients. By default, an engine
+         *               with the default policy is used.
+         * @return this builder
+         */
+        public Builder setEngine(final FilterEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * @param followRedirects the redirect policy, with the same
+         *                        meaning as
+         *                        {@link HttpClient.Builder#followRedirects(Redirect)}
+         * @return this builder
+         */
+        public Builder setFollowRedirects(final Redirect followRedirects) {
+            this.followRedirects = followRedirects;
+            return this;
+        }
+
+        /**
+         * @param maxRedirects the maximum number of redirects to follow
+         *                     for a single request (default: 5)
+         * @return this builder
+         */
+        public Builder setMaxRedirects(final int maxRedirects) {
+            this.maxRedirects = maxRedirects;
+            return this;
+        }
+
+        /**
+         * @param executor the executor on which asynchronous requests
+         *                 are checked. By default, a shared pool of 16
+         *                 daemon threads is used.
+         * @return this builder
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param logBlocks whether to log a warning for every blocked
+         *                  request (default: true)
+         * @return this builder
+         */
+        public Builder setLogBlocks(final boolean logBlocks) {
+            this.logBlocks = logBlocks;
+            return this;
+        }
+
+        /**
+         * @param builder configures the client that sends the requests.
+         *                Its redirect policy is replaced, as redirects
+         *                are followed by the filtering client.
+         * @return a client that only contacts permitted hosts
+         */
+        public FilteringHttpClient build(final HttpClient.Builder builder) {
+            return new FilteringHttpClient(builder.followRedirects(Redirect.NEVER).build(),
+                    engine != null ? engine : FilterEngine.custom().build(), followRedirects, maxRedirects,
+                    executor != null ? executor : DefaultExecutorHolder.executor, logBlocks);
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http.jdk;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.macasaet.apache.http.AddressRangeTrie;
+import com.macasaet.apache.http.FilterEngine;
+import com.macasaet.apache.http.FilterMetrics;
+import com.macasaet.apache.http.Verdict;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exercises {@link FilteringHttpClient} against a local server.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class FilteringHttpClientTest {
+
+    private final FilterMetrics metrics = new FilterMetrics();
+    // the test server listens on the loopback interface, so it must be exempted
+    private final FilterEngine engine = FilterEngine.custom()
+            .setAddressRanges(AddressRangeTrie.custom().allow("127.0.0.1").build())
+            .addListener(metrics)
+            .build();
+    private final List<String> methods = new CopyOnWriteArrayList<>();
+    private final List<Headers> requestHeaders = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+    private HttpServer otherServer;
+    private String base;
+    private HttpClient client;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", exchange -> respond(exchange, 200, null));
+        server.createContext("/internal", exchange -> respond(exchange, 302, "http://169.254.169.254/latest/meta-data/"));
+        server.createContext("/relative", exchange -> respond(exchange, 303, "/"));
+        server.start();
+        // a different port is a different origin
+        otherServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        otherServer.createContext("/", exchange -> respond(exchange, 200, null));
+        otherServer.start();
+        server.createContext("/elsewhere",
+                exchange -> respond(exchange, 302, "http://127.0.0.1:" + otherServer.getAddress().getPort() + "/"));
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = FilteringHttpClient.custom()
+                .setEngine(engine)
+                .setFollowRedirects(HttpClient.Redirect.NORMAL)
+                .build(HttpClient.newBuilder());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        otherServer.stop(0);
+        server.stop(0);
+    }
+
+    @Test
+    public final void verifyAllowedHostIsReachable() throws Exception {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/")).build();
+
+        // when
+        final HttpResponse<String> result = client.send(request, BodyHandlers.ofString());
+
+        // then
+        assertEquals(200, result.statusCode());
+        assertEquals("ok", result.body());
+        assertEquals(1, metrics.getCount(Verdict.ALLOWED));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "http://169.254.169.254/latest/meta-data/",
+            "http://metadata.google.internal/computeMetadata/v1/instance/disks/0/",
+            "http://www.nist.gov@169.254.169.254/latest/meta-data/",
+            "http://[::1]/",
+            "http://2852039166/latest/meta-data/",
+    })
+    public final void verifyRequestToBannedHostIsBlocked(final String url) {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(url)).build();
+
+        // when / then
+        final UnknownHostException result = assertThrows(UnknownHostException.class,
+                () -> client.send(request, BodyHandlers.ofString()));
+        assertEquals("Blocked host.", result.getMessage());
+    }
+
+    @Test
+    public final void verifyRedirectToBannedHostIsBlocked() {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/internal")).build();
+
+        // when / then
+        final UnknownHostException result = assertThrows(UnknownHostException.class,
+                () -> client.send(request, BodyHandlers.ofString()));
+        assertEquals("Blocked host.", result.getMessage());
+    }
+
+    @Test
+    public final void verifyAsynchronousRedirectToBannedHostIsBlocked() {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/internal")).build();
+
+        // when / then
+        final ExecutionException result = assertThrows(ExecutionException.class,
+                () -> client.sendAsync(request, BodyHandlers.ofString()).get(10, TimeUnit.SECONDS));
+        assertTrue(result.getCause() instanceof UnknownHostException);
+        assertEquals("Blocked host.", result.getCause().getMessage());
+    }
+
+    @Test
+    public final void verifyRedirectIsFollowed() throws Exception {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/relative"))
+                .POST(HttpRequest.BodyPublishers.ofString("body"))
+                .build();
+
+        // when
+        final HttpResponse<String> result = client.sendAsync(request, BodyHandlers.ofString()).get(10,
+                TimeUnit.SECONDS);
+
+        // then
+        assertEquals(200, result.statusCode());
+        assertEquals("ok", result.body());
+        assertEquals(List.of("POST", "GET"), methods);
+        assertEquals(2, metrics.getCount(Verdict.ALLOWED));
+    }
+
+    @Test
+    public final void verifyCredentialsAreNotSentToAnotherOrigin() throws Exception {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/elsewhere"))
+                .header("Authorization", "Bearer secret")
+                .header("Proxy-Authorization", "Basic c2VjcmV0")
+                .header("Cookie", "session=secret")
+                .header("X-Request-Id", "42")
+                .build();
+
+        // when
+        final HttpResponse<String> result = client.send(request, BodyHandlers.ofString());
+
+        // then
+        assertEquals(200, result.statusCode());
+        assertEquals(2, requestHeaders.size());
+        assertEquals("Bearer secret", requestHeaders.get(0).getFirst("Authorization"));
+        final Headers redirected = requestHeaders.get(1);
+        assertNull(redirected.getFirst("Authorization"));
+        assertNull(redirected.getFirst("Proxy-Authorization"));
+        assertNull(redirected.getFirst("Cookie"));
+        assertEquals("42", redirected.getFirst("X-Request-Id"));
+    }
+
+    @Test
+    public final void verifyCredentialsAreSentToSameOrigin() throws Exception {
+        // given
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/relative"))
+                .header("Authorization", "Bearer secret")
+                .build();
+
+        // when
+        client.send(request, BodyHandlers.ofString());
+
+        // then
+        assertEquals(2, requestHeaders.size());
+        assertEquals("Bearer secret", requestHeaders.get(1).getFirst("Authorization"));
+    }
+
+    @Test
+    public final void verifyRedirectIsNotFollowedByDefault() throws Exception {
+        // given
+        final HttpClient client = FilteringHttpClient.custom().setEngine(engine).build(HttpClient.newBuilder());
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/internal")).build();
+
+        // when
+        final HttpResponse<String> result = client.send(request, BodyHandlers.ofString());
+
+        // then
+        assertEquals(302, result.statusCode());
+        assertEquals(HttpClient.Redirect.NEVER, client.followRedirects());
+    }
+
+    protected void respond(final HttpExchange exchange, final int status, final String location) throws IOException {
+        methods.add(exchange.getRequestMethod());
+        requestHeaders.add(exchange.getRequestHeaders());
+        exchange.getRequestBody().readAllBytes();
+        if (location != null) {
+            exchange.getResponseHeaders().add("Location", location);
+        }
+        final byte[] body = (status == 200 ? "ok" : "moved").getBytes(UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+/**
+ * <p>A {@link DnsResolver} that refuses to return internal addresses.
+ * The connection manager connects to exactly the addresses that were
+ * checked, so a host name is resolved only once per new connection.
+ * Use this with
+ * {@link InternalAddressFilteringRequestInterceptor#installWithResolver(org.apache.http.impl.client.HttpClientBuilder)}
+ * or pass it directly to a
+ * {@link org.apache.http.impl.conn.PoolingHttpClientConnectionManager}
+ * when supplying a custom connection manager.</p>
+ *
+ * <p>Note that the connection manager does not consult the resolver
+ * when the target {@link org.apache.http.HttpHost} already carries an
+ * {@link InetAddress}. The request interceptor still checks those.</p>
+ *
+ * <p>When a request goes through a proxy, the connection manager
+ * resolves the proxy rather than the target. Proxies commonly have
+ * internal addresses, so the interceptor installed alongside this
+ * resolver exempts the proxy's lookup and checks the target
+ * itself.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AddressFilteringDnsResolver implements DnsResolver {
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final DnsResolver delegate;
+    private final Supplier<FilterPolicy> policy;
+    private final FilterListener listener;
+    private final boolean logBlocks;
+    // the proxy of the request being executed on each thread
+    private final ThreadLocal<String> proxyHostName = new ThreadLocal<>();
+
+    public AddressFilteringDnsResolver() {
+        this(SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    /**
+     * @param delegate the resolver that performs the actual lookup
+     */
+    public AddressFilteringDnsResolver(final DnsResolver delegate) {
+        this(delegate, FilterPolicy::defaultPolicy);
+    }
+
+    /**
+     * @param delegate the resolver that performs the actual lookup
+     * @param policy the source of the address rules to apply, consulted
+     *               on every lookup
+     */
+    public AddressFilteringDnsResolver(final DnsResolver delegate, final Supplier<FilterPolicy> policy) {
+        this(delegate, policy, null);
+    }
+
+    /**
+     * @param delegate the resolver that performs the actual lookup
+     * @param policy the source of the address rules to apply, consulted
+     *               on every lookup
+     * @param listener notified of every lookup and decision or
+     *                 <code>null</code> to skip instrumentation
+     */
+    public AddressFilteringDnsResolver(final DnsResolver delegate, final Supplier<FilterPolicy> policy,
+            final FilterListener listener) {
+        this(delegate, policy, listener, true);
+    }
+
+    /**
+     * @param delegate the resolver that performs the actual lookup
+     * @param policy the source of the address rules to apply, consulted
+     *               on every lookup
+     * @param listener notified of every lookup and decision or
+     *                 <code>null</code> to skip instrumentation
+     * @param logBlocks whether to log a warning for every blocked lookup
+     *                  on the requesting thread, e.g. <code>false</code>
+     *                  if the listener is an {@link AuditLog}
+     */
+    public AddressFilteringDnsResolver(final DnsResolver delegate, final Supplier<FilterPolicy> policy,
+            final FilterListener listener, final boolean logBlocks) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.delegate = delegate;
+        this.policy = policy;
+        this.listener = listener;
+        this.logBlocks = logBlocks;
+    }
+
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final long start = listener != null ? System.nanoTime() : 0;
+        final InetAddress[] addresses;
+        try {
+            addresses = delegate.resolve(host);
+        } catch (final UnknownHostException uhe) {
+            if (listener != null) {
+                final long elapsed = System.nanoTime() - start;
+                listener.onResolution(host, elapsed);
+                listener.onDecision(host, Verdict.RESOLUTION_FAILURE, elapsed);
+            }
+            throw uhe;
+        }
+        final long resolved = listener != null ? System.nanoTime() : 0;
+        final FilterPolicy currentPolicy = policy.get();
+        final boolean blocked = !currentPolicy.isTrustedHostName(host) && !host.equalsIgnoreCase(proxyHostName.get())
+                && currentPolicy.containsBlockedAddress(addresses);
+        if (listener != null) {
+            listener.onResolution(host, resolved - start);
+            listener.onDecision(host, blocked ? Verdict.BLOCKED_BY_ADDRESS : Verdict.ALLOWED,
+                    System.nanoTime() - start);
+        }
+        if (blocked) {
+            if (logBlocks) {
+                log.warn("Blocking connection to: " + host);
+            }
+            throw new UnknownHostException("Blocked host.");
+        }
+        return addresses;
+    }
+
+    /**
+     * Exempt lookups of the proxy of the request being executed on the
+     * current thread from address filtering. The target of such a
+     * request must be checked by the caller.
+     *
+     * @param proxy the first proxy on the route of the current request
+     *              or <code>null</code> if the target is contacted
+     *              directly
+     */
+    protected void setProxy(final HttpHost proxy) {
+        if (proxy == null) {
+            proxyHostName.remove();
+        } else {
+            proxyHostName.set(proxy.getHostName());
+        }
+    }
+
+}
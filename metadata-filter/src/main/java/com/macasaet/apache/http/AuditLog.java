@@ -0,0 +1,331 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>A {@link FilterListener} that logs blocked requests without slowing
+ * down the threads that make them. Each block is placed on a bounded,
+ * lock-free ring buffer that is drained by a single background thread.
+ * The request thread neither formats a message nor calls the logging
+ * framework.</p>
+ *
+ * <p>The background thread logs the first block of each host in every
+ * interval, up to a configurable number of messages per interval.
+ * Further blocks are counted, and one summary line is logged per host
+ * at the end of the interval, e.g. "Blocking connection to:
+ * metadata.example, 1500 further blocks suppressed". Once the limit is
+ * reached, the remaining hosts are summarised on a single line. The
+ * number of distinct hosts tracked per interval is bounded as well, so
+ * that a scan of many host names cannot grow the summary without limit;
+ * blocks of any further hosts are reported as a single count. If the
+ * ring buffer fills up faster than it is drained, the excess blocks are
+ * counted and reported rather than queued.</p>
+ *
+ * <p>Register this using
+ * {@link InternalAddressFilteringRequestInterceptor.Builder#setAuditLog(AuditLog)}
+ * so that it replaces the synchronous log message.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AuditLog implements FilterListener, Closeable {
+
+    private static final long drainIntervalMillis = 100;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final int capacity;
+    private final int mask;
+    // slot i may be written when its sequence equals the producer cursor and read when it is one greater
+    private final AtomicLongArray sequences;
+    private final String[] hostNames;
+    private final Verdict[] verdicts;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder overflow = new LongAdder();
+    private final long intervalNanos;
+    private final int maxMessagesPerInterval;
+    private final int maxHostsPerInterval;
+    private final LongSupplier ticker;
+    private final ScheduledExecutorService executor;
+
+    // guarded by this
+    private long head;
+    private final Map<String, long[]> blocksByHost = new LinkedHashMap<>();
+    private long otherHostBlocks;
+    private long intervalStart;
+    private int messages;
+
+    /**
+     * Log at most 20 messages every 10 seconds, buffering up to 1024
+     * blocks and tracking up to 1024 hosts.
+     */
+    public AuditLog() {
+        this(1024, TimeUnit.SECONDS.toNanos(10), 20, 1024, System::nanoTime, true);
+    }
+
+    AuditLog(final int capacity, final long intervalNanos, final int maxMessagesPerInterval,
+            final int maxHostsPerInterval, final LongSupplier ticker, final boolean start) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        if (maxMessagesPerInterval < 0) {
+            throw new IllegalArgumentException("maxMessagesPerInterval must not be negative");
+        }
+        if (maxHostsPerInterval <= 0) {
+            throw new IllegalArgumentException("maxHostsPerInterval must be positive");
+        }
+        // round up to a power of two so that the slot is a mask of the sequence
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.hostNames = new String[this.capacity];
+        this.verdicts = new Verdict[this.capacity];
+        this.intervalNanos = intervalNanos;
+        this.maxMessagesPerInterval = maxMessagesPerInterval;
+        this.maxHostsPerInterval = maxHostsPerInterval;
+        this.ticker = ticker;
+        this.intervalStart = ticker.getAsLong();
+        if (start) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread retval = new Thread(runnable, "filter-audit-log");
+                retval.setDaemon(true);
+                return retval;
+            });
+            executor.scheduleWithFixedDelay(this::drain, drainIntervalMillis, drainIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            executor = null;
+        }
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public void onDecision(final String hostName, final Verdict verdict, final long elapsedNanos) {
+        if (verdict == Verdict.BLOCKED_BY_NAME || verdict == Verdict.BLOCKED_BY_ADDRESS) {
+            if (!offer(hostName, verdict)) {
+                overflow.increment();
+            }
+        }
+    }
+
+    /**
+     * Process the queued blocks and, if the current interval has
+     * elapsed, log the summaries. This is called periodically by the
+     * background thread.
+     */
+    public synchronized void drain() {
+        for (int slot = (int) head & mask; sequences.get(slot) == head + 1; slot = (int) head & mask) {
+            final String hostName = hostNames[slot];
+            final Verdict verdict = verdicts[slot];
+            hostNames[slot] = null;
+            verdicts[slot] = null;
+            // release the slot for the producer one lap ahead
+            sequences.lazySet(slot, head + capacity);
+            head++;
+            record(hostName, verdict);
+        }
+        final long now = ticker.getAsLong();
+        if (now - intervalStart >= intervalNanos) {
+            summarise();
+            intervalStart = now;
+        }
+    }
+
+    /**
+     * Stop the background thread and log any outstanding blocks and
+     * summaries.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(drainIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            drain();
+            summarise();
+        }
+    }
+
+    /**
+     * @param message a line to write to the audit log
+     */
+    protected void emit(final String message) {
+        log.warn(message);
+    }
+
+    protected boolean offer(final String hostName, final Verdict verdict) {
+        long position = tail.get();
+        while (true) {
+            final int slot = (int) position & mask;
+            final long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    hostNames[slot] = hostName;
+                    verdicts[slot] = verdict;
+                    // publish the slot to the consumer
+                    sequences.lazySet(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the consumer has not yet released this slot
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    protected void record(final String hostName, final Verdict verdict) {
+        final long[] blocks = blocksByHost.get(hostName);
+        if (blocks != null) {
+            blocks[0]++;
+        } else if (blocksByHost.size() >= maxHostsPerInterval) {
+            otherHostBlocks++;
+        } else if (messages < maxMessagesPerInterval) {
+            messages++;
+            emit("Blocking connection to: " + hostName + " (" + verdict + ")");
+            // further blocks are counted against the logged one
+            blocksByHost.put(hostName, new long[] { 0, 1 });
+        } else {
+            blocksByHost.put(hostName, new long[] { 1, 0 });
+        }
+    }
+
+    protected void summarise() {
+        long unloggedBlocks = 0;
+        int unloggedHosts = 0;
+        for (final Map.Entry<String, long[]> entry : blocksByHost.entrySet()) {
+            final long suppressed = entry.getValue()[0];
+            final boolean logged = entry.getValue()[1] != 0;
+            if (suppressed == 0) {
+                continue;
+            }
+            if (logged && messages < maxMessagesPerInterval) {
+                messages++;
+                emit("Blocking connection to: " + entry.getKey() + ", " + suppressed + " further blocks suppressed");
+            } else {
+                unloggedBlocks += suppressed;
+                unloggedHosts++;
+            }
+        }
+        if (unloggedHosts > 0) {
+            emit(unloggedBlocks + " further blocks suppressed for " + unloggedHosts + " hosts");
+        }
+        if (otherHostBlocks > 0) {
+            emit(otherHostBlocks + " further blocks suppressed for other hosts");
+        }
+        final long lost = overflow.sumThenReset();
+        if (lost > 0) {
+            emit(lost + " further blocks suppressed, audit queue full");
+        }
+        blocksByHost.clear();
+        otherHostBlocks = 0;
+        messages = 0;
+    }
+
+    /**
+     * Builder for {@link AuditLog} instances.
+     */
+    public static class Builder {
+
+        private int capacity = 1024;
+        private long intervalNanos = TimeUnit.SECONDS.toNanos(10);
+        private int maxMessagesPerInterval = 20;
+        private int maxHostsPerInterval = 1024;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param capacity the number of blocks that may be queued before
+         *                 further blocks are only counted. This is
+         *                 rounded up to a power of two.
+         * @return this builder
+         */
+        public Builder setCapacity(final int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param interval the period over which blocks of the same host
+         *                 are combined into a single summary
+         * @param unit the unit of the interval
+         * @return this builder
+         */
+        public Builder setInterval(final long interval, final TimeUnit unit) {
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * @param maxMessagesPerInterval the number of individual lines
+         *                               that may be logged per interval,
+         *                               excluding the aggregate summary
+         *                               lines
+         * @return this builder
+         */
+        public Builder setMaxMessagesPerInterval(final int maxMessagesPerInterval) {
+            this.maxMessagesPerInterval = maxMessagesPerInterval;
+            return this;
+        }
+
+        /**
+         * @param maxHostsPerInterval the number of distinct hosts that
+         *                            are counted individually per
+         *                            interval. Blocks of further hosts
+         *                            are only counted in total.
+         * @return this builder
+         */
+        public Builder setMaxHostsPerInterval(final int maxHostsPerInterval) {
+            this.maxHostsPerInterval = maxHostsPerInterval;
+            return this;
+        }
+
+        public AuditLog build() {
+            return new AuditLog(capacity, intervalNanos, maxMessagesPerInterval, maxHostsPerInterval,
+                    System::nanoTime, true);
+        }
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+
+/**
+ * <p>Checks many URLs or hosts ahead of time, e.g. before a crawler
+ * enqueues them. Each distinct host is checked once, and up to a fixed
+ * number of hosts are resolved concurrently. Results are delivered as
+ * soon as the host of each item has been checked, so the first results
+ * are available long before the last lookup completes.</p>
+ *
+ * <p>Checks use the rules, {@link VerdictCache}, and listeners of the
+ * supplied filter, so they count towards its metrics and warm its cache
+ * for the requests that follow.</p>
+ *
+ * <p>By default, lookups run on virtual threads when the JVM provides
+ * them and on a shared pool of daemon threads otherwise.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class BulkValidator {
+
+    private static final int defaultParallelism = 32;
+
+    private final InternalAddressFilteringRequestInterceptor filter;
+    private final Executor executor;
+    private final int parallelism;
+
+    /**
+     * @param filter the filter whose rules to apply
+     */
+    public BulkValidator(final InternalAddressFilteringRequestInterceptor filter) {
+        this(filter, DefaultExecutorHolder.executor, defaultParallelism);
+    }
+
+    /**
+     * @param filter the filter whose rules to apply
+     * @param executor runs the lookups
+     * @param parallelism the maximum number of hosts to check at once
+     */
+    public BulkValidator(final InternalAddressFilteringRequestInterceptor filter, final Executor executor,
+            final int parallelism) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.filter = filter;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param uris the URLs to check
+     * @param consumer receives one result per URL, possibly from several
+     *                 threads at once
+     * @return a future that completes once every result has been
+     *         delivered
+     */
+    public CompletableFuture<Void> validateUris(final Collection<URI> uris, final Consumer<Result<URI>> consumer) {
+        return validate(uris, URIUtils::extractHost, consumer);
+    }
+
+    /**
+     * @param hosts the hosts to check
+     * @param consumer receives one result per host, possibly from several
+     *                 threads at once
+     * @return a future that completes once every result has been
+     *         delivered
+     */
+    public CompletableFuture<Void> validateHosts(final Collection<HttpHost> hosts,
+            final Consumer<Result<HttpHost>> consumer) {
+        return validate(hosts, Function.identity(), consumer);
+    }
+
+    /**
+     * @param <T> the type of item to check
+     * @param items the items to check
+     * @param hostOf extracts the host from an item, returning
+     *               <code>null</code> if it does not have one
+     * @param consumer receives one result per item, possibly from several
+     *                 threads at once
+     * @return a future that completes once every result has been
+     *         delivered, or exceptionally if the consumer throws an
+     *         exception or error
+     */
+    public <T> CompletableFuture<Void> validate(final Collection<T> items, final Function<? super T, HttpHost> hostOf,
+            final Consumer<Result<T>> consumer) {
+        // group the items by host so that each host is checked once
+        final Map<String, Group<T>> groups = new LinkedHashMap<>();
+        final List<T> missingHost = new ArrayList<>();
+        for (final T item : items) {
+            final HttpHost host = hostOf.apply(item);
+            if (host == null) {
+                missingHost.add(item);
+                continue;
+            }
+            groups.computeIfAbsent(key(host), key -> new Group<>(host)).items.add(item);
+        }
+        final CompletableFuture<Void> retval = new CompletableFuture<>();
+        try {
+            for (final T item : missingHost) {
+                consumer.accept(new Result<>(item, null, Verdict.RESOLUTION_FAILURE,
+                        new HttpException("No host specified")));
+            }
+        } catch (final RuntimeException re) {
+            retval.completeExceptionally(re);
+            return retval;
+        }
+        if (groups.isEmpty()) {
+            retval.complete(null);
+            return retval;
+        }
+        final Iterator<Group<T>> pending = groups.values().iterator();
+        final int workers = Math.min(parallelism, groups.size());
+        final AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            try {
+                executor.execute(() -> work(pending, consumer, running, retval));
+            } catch (final RejectedExecutionException ree) {
+                retval.completeExceptionally(ree);
+                break;
+            }
+        }
+        return retval;
+    }
+
+    protected <T> void work(final Iterator<Group<T>> pending, final Consumer<Result<T>> consumer,
+            final AtomicInteger running, final CompletableFuture<Void> completion) {
+        try {
+            while (!completion.isDone()) {
+                final Group<T> group;
+                synchronized (pending) {
+                    if (!pending.hasNext()) {
+                        break;
+                    }
+                    group = pending.next();
+                }
+                Verdict verdict;
+                Exception failure = null;
+                try {
+                    verdict = filter.check(group.host);
+                } catch (final IOException ioe) {
+                    verdict = Verdict.RESOLUTION_FAILURE;
+                    failure = ioe;
+                }
+                for (final T item : group.items) {
+                    consumer.accept(new Result<>(item, group.host, verdict, failure));
+                }
+            }
+        } catch (final RuntimeException re) {
+            completion.completeExceptionally(re);
+        } catch (final Error e) {
+            // the results are incomplete, so callers must not see a normal completion
+            completion.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (running.decrementAndGet() == 0) {
+                completion.complete(null);
+            }
+        }
+    }
+
+    protected String key(final HttpHost host) {
+        final String hostName = host.getHostName().toLowerCase(Locale.ENGLISH);
+        // an explicit address is checked instead of the name's addresses
+        return host.getAddress() == null ? hostName : hostName + "/" + host.getAddress().getHostAddress();
+    }
+
+    protected static class Group<T> {
+        final HttpHost host;
+        final List<T> items = new ArrayList<>(1);
+
+        public Group(final HttpHost host) {
+            this.host = host;
+        }
+    }
+
+    /**
+     * The outcome of checking a single item.
+     *
+     * @param <T> the type of item that was checked
+     */
+    public static class Result<T> {
+
+        private final T item;
+        private final HttpHost host;
+        private final Verdict verdict;
+        private final Exception failure;
+
+        public Result(final T item, final HttpHost host, final Verdict verdict, final Exception failure) {
+            this.item = item;
+            this.host = host;
+            this.verdict = verdict;
+            this.failure = failure;
+        }
+
+        /**
+         * @return the item that was checked
+         */
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return the host of the item or <code>null</code> if it does not
+         *         have one
+         */
+        public HttpHost getHost() {
+            return host;
+        }
+
+        public Verdict getVerdict() {
+            return verdict;
+        }
+
+        /**
+         * @return the reason the host could not be checked or
+         *         <code>null</code> if it was
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        public boolean isPermitted() {
+            return verdict == Verdict.ALLOWED;
+        }
+
+        public String toString() {
+            return item + ": " + verdict;
+        }
+    }
+
+    /**
+     * Lazily creates the default lookup executor so that it is only
+     * started if it is used.
+     */
+    protected static class DefaultExecutorHolder {
+        static final Executor executor = createExecutor();
+
+        private static Executor createExecutor() {
+            try {
+                // virtual threads are only available from Java 21
+                final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) factory.invoke(null);
+            } catch (final NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                final AtomicInteger counter = new AtomicInteger();
+                return Executors.newFixedThreadPool(defaultParallelism, runnable -> {
+                    final Thread retval = new Thread(runnable, "bulk-validator-" + counter.incrementAndGet());
+                    retval.setDaemon(true);
+                    return retval;
+                });
+            }
+        }
+    }
+
+}
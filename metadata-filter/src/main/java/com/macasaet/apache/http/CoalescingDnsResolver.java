@@ -0,0 +1,126 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+/**
+ * <p>A {@link DnsResolver} that shares one lookup among all threads that
+ * resolve the same host name at the same time. The first thread performs
+ * the lookup while the others wait for it; they are all released
+ * together with the same addresses or the same failure. This prevents a
+ * burst of requests for a popular host, e.g. after its cached verdict
+ * expires, from turning into a burst of identical DNS queries.</p>
+ *
+ * <p>Nothing is cached once the lookup completes. To bound how long the
+ * waiting threads may be held, wrap a {@link DeadlineDnsResolver}:</p>
+ *
+ * <pre>
+ * new CoalescingDnsResolver(DeadlineDnsResolver.custom().setTimeout(2, TimeUnit.SECONDS).build())
+ * </pre>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class CoalescingDnsResolver implements DnsResolver {
+
+    private final DnsResolver delegate;
+    private final ConcurrentMap<String, CompletableFuture<InetAddress[]>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public CoalescingDnsResolver() {
+        this(SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    /**
+     * @param delegate the resolver that performs the actual lookup
+     */
+    public CoalescingDnsResolver(final DnsResolver delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        this.delegate = delegate;
+    }
+
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final String key = host.toLowerCase(Locale.ENGLISH);
+        final CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+        final CompletableFuture<InetAddress[]> existing = inFlight.putIfAbsent(key, lookup);
+        if (existing != null) {
+            coalesced.increment();
+            return await(host, existing);
+        }
+        lookups.increment();
+        final InetAddress[] retval;
+        try {
+            retval = delegate.resolve(host);
+        } catch (final Throwable t) {
+            // remove before completing so that later callers start a new lookup rather than reuse this one
+            inFlight.remove(key, lookup);
+            // waiting callers would otherwise block forever, even if the delegate throws an Error
+            lookup.completeExceptionally(t);
+            throw t;
+        }
+        inFlight.remove(key, lookup);
+        lookup.complete(retval);
+        // callers may modify the array, so each receives its own copy
+        return retval.clone();
+    }
+
+    /**
+     * @return the number of lookups performed by the delegate
+     */
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return the number of calls that shared another caller's lookup
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    protected InetAddress[] await(final String host, final CompletableFuture<InetAddress[]> lookup)
+            throws UnknownHostException {
+        try {
+            return lookup.get().clone();
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving: " + host);
+        } catch (final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            // each waiting thread receives its own exception
+            final UnknownHostException retval = new UnknownHostException(
+                    cause instanceof UnknownHostException ? cause.getMessage() : "Unable to resolve: " + host);
+            retval.initCause(cause);
+            throw retval;
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+/**
+ * <p>A {@link DnsResolver} that gives up on a lookup after a deadline.
+ * The JDK resolver cannot be interrupted and may block for as long as
+ * the operating system's resolver timeout, so lookups are run on a
+ * bounded pool of threads while the requesting thread waits no longer
+ * than the deadline. A lookup that times out, or that cannot be started
+ * because the pool is saturated, fails with an
+ * {@link UnknownHostException}, so the request is refused rather than
+ * allowed.</p>
+ *
+ * <p>Optionally, a second, hedged attempt is started if the first has
+ * not completed after a delay, and the first attempt to succeed wins.
+ * The delay adapts to a percentile of the observed lookup latencies.
+ * Hedging only helps if concurrent lookups of the same name are
+ * independent; the JDK resolver makes a second lookup of a name wait
+ * for the first, so hedging is disabled by default.</p>
+ *
+ * <p>Use it with any of the installation modes:</p>
+ *
+ * <pre>
+ * final InternalAddressFilteringRequestInterceptor filter = InternalAddressFilteringRequestInterceptor.custom()
+ *     .setDnsResolver(DeadlineDnsResolver.custom().setTimeout(2, TimeUnit.SECONDS).build())
+ *     .build();
+ * </pre>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class DeadlineDnsResolver implements DnsResolver {
+
+    // recompute the adaptive hedging delay after this many lookups
+    private static final int samplesPerUpdate = 64;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final DnsResolver delegate;
+    private final Executor executor;
+    private final long timeoutNanos;
+    private final long minimumHedgeDelayNanos;
+    private final double hedgePercentile;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger samples = new AtomicInteger();
+    private volatile long hedgeDelayNanos;
+
+    /**
+     * @param delegate the resolver that performs the actual lookup
+     * @param executor runs the lookups; it should be bounded
+     * @param timeoutNanos the maximum time to wait for a lookup
+     * @param hedgeDelayNanos the delay before a second attempt is
+     *                        started or a negative value to disable
+     *                        hedging
+     * @param hedgePercentile when greater than zero, the percentile of
+     *                        successful lookup latencies used as the
+     *                        delay once enough lookups have been
+     *                        observed. The configured delay remains the
+     *                        minimum.
+     */
+    protected DeadlineDnsResolver(final DnsResolver delegate, final Executor executor, final long timeoutNanos,
+            final long hedgeDelayNanos, final double hedgePercentile) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        if (hedgePercentile < 0 || hedgePercentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: " + hedgePercentile);
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.timeoutNanos = timeoutNanos;
+        this.minimumHedgeDelayNanos = hedgeDelayNanos;
+        this.hedgeDelayNanos = hedgeDelayNanos;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        final long start = System.nanoTime();
+        final CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        attempt(host, start, true, result, outstanding);
+        try {
+            final long hedgeDelay = hedgeDelayNanos;
+            if (hedgeDelay >= 0 && hedgeDelay < timeoutNanos) {
+                try {
+                    return result.get(hedgeDelay, TimeUnit.NANOSECONDS);
+                } catch (final TimeoutException te) {
+                    outstanding.incrementAndGet();
+                    attempt(host, start, false, result, outstanding);
+                }
+            }
+            return result.get(timeoutNanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException te) {
+            log.warn("Timed out resolving: " + host);
+            throw fail(result, "Timed out resolving: " + host);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw fail(result, "Interrupted while resolving: " + host);
+        } catch (final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
+            }
+            final UnknownHostException retval = new UnknownHostException("Unable to resolve: " + host);
+            retval.initCause(cause);
+            throw retval;
+        }
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the delay before a second attempt is started or a negative
+     *         value if hedging is disabled
+     */
+    public long getHedgeDelay(final TimeUnit unit) {
+        final long delay = hedgeDelayNanos;
+        return delay < 0 ? -1 : unit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the latencies of successful lookups in nanoseconds, measured
+     *         from the start of the first attempt. Both the attempt that
+     *         answered the caller and a first attempt that lost to a
+     *         hedged one are recorded.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param host the host to resolve
+     * @param start when the first attempt was started, per
+     *              {@link System#nanoTime()}
+     * @param primary true if this is the first attempt, false if it is
+     *                the hedged one
+     * @param result completed by the first attempt to succeed
+     * @param outstanding the number of attempts that have not failed
+     */
+    protected void attempt(final String host, final long start, final boolean primary,
+            final CompletableFuture<InetAddress[]> result, final AtomicInteger outstanding) {
+        try {
+            executor.execute(() -> {
+                // a queued attempt may no longer be needed
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    final InetAddress[] addresses = delegate.resolve(host);
+                    final long elapsed = System.nanoTime() - start;
+                    // a first attempt that loses still counts, otherwise the slow lookups that trigger hedging
+                    // would be missing from the estimate
+                    if (result.complete(addresses) || primary) {
+                        record(elapsed);
+                    }
+                } catch (final UnknownHostException | RuntimeException e) {
+                    // fail only once every attempt has failed
+                    if (outstanding.decrementAndGet() == 0) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ree) {
+            if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(new UnknownHostException("Too many concurrent lookups: " + host));
+            }
+        }
+    }
+
+    protected void record(final long elapsedNanos) {
+        latency.record(elapsedNanos);
+        if (hedgePercentile > 0 && minimumHedgeDelayNanos >= 0
+                && samples.incrementAndGet() % samplesPerUpdate == 0) {
+            hedgeDelayNanos = Math.max(minimumHedgeDelayNanos, latency.getPercentile(hedgePercentile));
+        }
+    }
+
+    protected UnknownHostException fail(final CompletableFuture<InetAddress[]> result, final String message) {
+        // discard any attempt that completes later
+        result.cancel(false);
+        return new UnknownHostException(message);
+    }
+
+    /**
+     * Lazily creates the default lookup executor so that it is only
+     * started if it is used.
+     */
+    protected static class DefaultExecutorHolder {
+        private static final int threads = 32;
+        private static final int queueSize = 1024;
+        static final Executor executor = createExecutor();
+
+        private static Executor createExecutor() {
+            final AtomicInteger counter = new AtomicInteger();
+            // excess lookups are rejected rather than queued indefinitely
+            return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                        final Thread retval = new Thread(runnable, "dns-resolver-" + counter.incrementAndGet());
+                        retval.setDaemon(true);
+                        return retval;
+                    });
+        }
+    }
+
+    /**
+     * Builder for {@link DeadlineDnsResolver} instances.
+     */
+    public static class Builder {
+
+        private DnsResolver delegate = SystemDefaultDnsResolver.INSTANCE;
+        private Executor executor;
+        private long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+        private long hedgeDelayNanos = -1;
+        private double hedgePercentile;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param delegate the resolver that performs the actual lookup
+         * @return this builder
+         */
+        public Builder setDelegate(final DnsResolver delegate) {
+            this.delegate = delegate;
+            return this;
+        }
+
+        /**
+         * @param executor runs the lookups. It should be bounded and
+         *                 reject lookups when saturated. By default, a
+         *                 shared pool of 32 daemon threads is used.
+         * @return this builder
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param timeout the maximum time to wait for a lookup, including
+         *                any hedged attempt. The default is five seconds.
+         * @param unit the unit of the timeout
+         * @return this builder
+         */
+        public Builder setTimeout(final long timeout, final TimeUnit unit) {
+            this.timeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * @param delay how long to wait for the first attempt before
+         *              starting a second one
+         * @param unit the unit of the delay
+         * @return this builder
+         */
+        public Builder setHedgeDelay(final long delay, final TimeUnit unit) {
+            if (delay < 0) {
+                throw new IllegalArgumentException("delay must not be negative");
+            }
+            this.hedgeDelayNanos = unit.toNanos(delay);
+            return this;
+        }
+
+        /**
+         * @param percentile adapt the hedging delay to this percentile of
+         *                   successful lookup latencies, e.g.
+         *                   <code>95</code>. The delay set with
+         *                   {@link #setHedgeDelay(long, TimeUnit)}
+         *                   remains the minimum.
+         * @return this builder
+         */
+        public Builder setHedgePercentile(final double percentile) {
+            this.hedgePercentile = percentile;
+            return this;
+        }
+
+        public DeadlineDnsResolver build() {
+            return new DeadlineDnsResolver(delegate, executor != null ? executor : DefaultExecutorHolder.executor,
+                    timeoutNanos, hedgeDelayNanos, hedgePercentile);
+        }
+    }
+
+}
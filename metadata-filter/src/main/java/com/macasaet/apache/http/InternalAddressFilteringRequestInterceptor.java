@@ -0,0 +1,859 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import static org.apache.http.client.protocol.HttpClientContext.HTTP_ROUTE;
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+
+/**
+ * <p>An {@link HttpRequestInterceptor} that blocks access to internal
+ * metadata API hosts as well as link local addresses.
+ * {@link org.apache.http.client.HttpClient Clients} that are meant to
+ * call user-provided URLs should consider using this to mitigate
+ * against malicious actors who may provide cloud provider metadata API
+ * URLs as part of a server-side request forgery (SSRF) attack. Clients
+ * that are meant to access metadata APIs should <strong>not</strong>
+ * use this.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class InternalAddressFilteringRequestInterceptor implements HttpRequestInterceptor {
+
+    public static final List<String> defaultBlockedHosts = FilterPolicy.defaultBlockedHosts;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final FilterEngine engine;
+    private final DnsResolver dnsResolver;
+    private final boolean logBlocks;
+    private final ProxyPolicy proxyPolicy;
+
+    public InternalAddressFilteringRequestInterceptor() {
+        this(SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    /**
+     * @param dnsResolver the resolver used to look up the addresses of
+     *                    target hosts
+     */
+    public InternalAddressFilteringRequestInterceptor(final DnsResolver dnsResolver) {
+        this(dnsResolver, null, FilterPolicy::defaultPolicy, null, true);
+    }
+
+    /**
+     * @param engine the engine that decides which hosts may be
+     *               contacted, which may be shared with other clients
+     */
+    public InternalAddressFilteringRequestInterceptor(final FilterEngine engine) {
+        this(engine, engine != null ? adapt(engine.getResolver()) : null, true);
+    }
+
+    /**
+     * @param dnsResolver the resolver used to look up the addresses of
+     *                    target hosts
+     * @param verdictCache a cache for allow/deny decisions or
+     *                     <code>null</code> to evaluate every request
+     * @param policy the source of the current rules, consulted on every
+     *               request
+     * @param listener notified of every decision or <code>null</code>
+     *                 to skip instrumentation
+     * @param logBlocks whether to log a warning for every blocked
+     *                  request on the requesting thread
+     */
+    protected InternalAddressFilteringRequestInterceptor(final DnsResolver dnsResolver,
+            final VerdictCache verdictCache, final Supplier<FilterPolicy> policy, final FilterListener listener,
+            final boolean logBlocks) {
+        this(new FilterEngine(adapt(dnsResolver), verdictCache, policy, listener), dnsResolver, logBlocks);
+    }
+
+    /**
+     * @param engine the engine that decides which hosts may be contacted
+     * @param dnsResolver the resolver used by
+     *                    {@link #installWithResolver(HttpClientBuilder)}
+     * @param logBlocks whether to log a warning for every blocked
+     *                  request on the requesting thread
+     */
+    protected InternalAddressFilteringRequestInterceptor(final FilterEngine engine, final DnsResolver dnsResolver,
+            final boolean logBlocks) {
+        this(engine, dnsResolver, logBlocks, null);
+    }
+
+    /**
+     * @param engine the engine that decides which hosts may be contacted
+     * @param dnsResolver the resolver used by
+     *                    {@link #installWithResolver(HttpClientBuilder)}
+     * @param logBlocks whether to log a warning for every blocked
+     *                  request on the requesting thread
+     * @param proxyPolicy decides proxied targets that are not decided by
+     *                    the name and literal rules, or <code>null</code>
+     *                    to resolve proxied targets locally
+     */
+    protected InternalAddressFilteringRequestInterceptor(final FilterEngine engine, final DnsResolver dnsResolver,
+            final boolean logBlocks, final ProxyPolicy proxyPolicy) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine must not be null");
+        }
+        if (dnsResolver == null) {
+            throw new IllegalArgumentException("dnsResolver must not be null");
+        }
+        this.engine = engine;
+        this.dnsResolver = dnsResolver;
+        this.logBlocks = logBlocks;
+        this.proxyPolicy = proxyPolicy;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public void install(final HttpClientBuilder builder) {
+        builder.addInterceptorFirst(this);
+    }
+
+    /**
+     * <p>Install this filter such that each new connection resolves the
+     * target host only once. Host names are checked by a request
+     * interceptor while the resolved addresses are checked by an
+     * {@link AddressFilteringDnsResolver} that hands them directly to
+     * the connection manager.</p>
+     *
+     * <p>The targets of proxied requests are checked in full by the
+     * interceptor, or by the {@link ProxyPolicy} if one is set, while
+     * the lookup of the proxy itself is exempt from address
+     * filtering.</p>
+     *
+     * <p>Note that {@link HttpClientBuilder} ignores the DNS resolver
+     * when a custom connection manager is specified. In that case,
+     * construct the connection manager with an
+     * {@link AddressFilteringDnsResolver} instead.</p>
+     *
+     * @param builder the builder for the client to protect
+     */
+    public void installWithResolver(final HttpClientBuilder builder) {
+        final FilterListener listener = engine.getListener();
+        final AddressFilteringDnsResolver resolver = new AddressFilteringDnsResolver(dnsResolver, engine::getPolicy,
+                listener, logBlocks);
+        builder.setDnsResolver(resolver);
+        builder.addInterceptorFirst(new HttpRequestInterceptor() {
+            public void process(final HttpRequest request, final HttpContext context)
+                    throws HttpException, IOException {
+                final HttpHost host = getHost(request, context);
+                final HttpRoute route = (HttpRoute) context.getAttribute(HTTP_ROUTE);
+                final HttpHost proxy = route != null ? route.getProxyHost() : null;
+                // the connection manager resolves on this thread, after the interceptors have run
+                resolver.setProxy(proxy);
+                if (proxy != null) {
+                    // the connection manager only resolves the proxy, so the target is decided here, with or
+                    // without a proxy policy
+                    if (check(host, proxy) != Verdict.ALLOWED) {
+                        if (logBlocks) {
+                            log.warn("Blocking connection to: " + host);
+                        }
+                        throw new HttpException("Blocked host.");
+                    }
+                    return;
+                }
+                final long start = listener != null ? System.nanoTime() : 0;
+                final FilterPolicy currentPolicy = engine.getPolicy();
+                // the connection manager skips the resolver for explicit addresses
+                final InetAddress explicitAddress = host.getAddress();
+                final Verdict verdict;
+                if (explicitAddress == null && currentPolicy.isTrustedHostName(host.getHostName())) {
+                    // the resolver permits trusted names without checking their addresses
+                    return;
+                } else if (currentPolicy.isBlockedHostName(host.getHostName())) {
+                    verdict = Verdict.BLOCKED_BY_NAME;
+                } else if (explicitAddress != null) {
+                    verdict = currentPolicy.isBlockedAddress(explicitAddress) ? Verdict.BLOCKED_BY_ADDRESS
+                            : Verdict.ALLOWED;
+                } else {
+                    // the resolver reports its own decision
+                    return;
+                }
+                if (listener != null) {
+                    listener.onDecision(host.getHostName(), verdict, System.nanoTime() - start);
+                }
+                if (verdict != Verdict.ALLOWED) {
+                    if (logBlocks) {
+                        log.warn("Blocking connection to: " + host);
+                    }
+                    throw new HttpException("Blocked host.");
+                }
+            }
+        });
+    }
+
+    public HttpProcessor wrap(final HttpProcessor delegate) {
+        return new HttpProcessor() {
+
+            public void process(final HttpResponse response, final HttpContext context)
+                    throws HttpException, IOException {
+                delegate.process(response, context);
+            }
+
+            public void process(final HttpRequest request, final HttpContext context)
+                    throws HttpException, IOException {
+                InternalAddressFilteringRequestInterceptor.this.process(request, context);
+                delegate.process(request, context);
+            }
+        };
+    }
+
+    /**
+     * <p>Wrap a connection manager so that hosts are checked when a
+     * connection is opened rather than on every request. Requests that
+     * reuse a pooled connection to an approved address skip the check,
+     * so on a keep-alive connection the filter costs a single attribute
+     * lookup per request.</p>
+     *
+     * <p>Before a new connection is opened, the host is checked in full:
+     * the host name is resolved once, every address is checked, and the
+     * delegate is then told to connect to the checked addresses rather
+     * than resolving the name again. No connection is attempted to a
+     * blocked address. When the policy changes, reused connections are
+     * checked again against the new rules.</p>
+     *
+     * <p>Blocked connections fail with an
+     * {@link java.net.UnknownHostException} that is not retried. Use
+     * this <em>instead of</em> installing the filter as a request
+     * interceptor:</p>
+     *
+     * <pre>
+     * final CloseableHttpClient client = HttpClientBuilder.create()
+     *     .setConnectionManager(filter.wrap(new PoolingHttpClientConnectionManager()))
+     *     .build();
+     * </pre>
+     *
+     * @param delegate the connection manager that opens and pools the
+     *                 connections
+     * @return a connection manager that only opens connections to
+     *         permitted hosts
+     */
+    public HttpClientConnectionManager wrap(final HttpClientConnectionManager delegate) {
+        return new FilteringConnectionManager(delegate);
+    }
+
+    public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
+        final HttpHost host = getHost(request, context);
+        if (check(host, getProxy(context)) != Verdict.ALLOWED) {
+            if (logBlocks) {
+                log.warn("Blocking connection to: " + host);
+            }
+            throw new HttpException("Blocked host.");
+        }
+    }
+
+    /**
+     * Check a host without making a request, notifying any listeners of
+     * the outcome.
+     *
+     * @param host a host that may be contacted later
+     * @return the outcome of checking the host against the current policy
+     * @throws IOException if the host name cannot be resolved
+     * @see BulkValidator
+     */
+    public Verdict check(final HttpHost host) throws IOException {
+        return engine.check(host.getHostName(), host.getAddress());
+    }
+
+    /**
+     * Check a host that may be reached through a proxy, notifying any
+     * listeners of the outcome. If a {@link ProxyPolicy} is configured,
+     * a proxied host name is never resolved locally.
+     *
+     * @param host a host that may be contacted later
+     * @param proxy the first proxy on the route to the host or
+     *              <code>null</code> if the host is contacted directly
+     * @return the outcome of checking the host against the current policy
+     * @throws IOException if the host cannot be checked
+     */
+    public Verdict check(final HttpHost host, final HttpHost proxy) throws IOException {
+        if (proxy == null || proxyPolicy == null) {
+            return check(host);
+        }
+        final FilterListener listener = engine.getListener();
+        if (listener == null) {
+            return evaluate(host, proxy);
+        }
+        final long start = System.nanoTime();
+        final Verdict retval;
+        try {
+            retval = evaluate(host, proxy);
+        } catch (final IOException ioe) {
+            listener.onDecision(host.getHostName(), Verdict.RESOLUTION_FAILURE, System.nanoTime() - start);
+            throw ioe;
+        }
+        listener.onDecision(host.getHostName(), retval, System.nanoTime() - start);
+        return retval;
+    }
+
+    /**
+     * @return the engine that decides which hosts may be contacted
+     */
+    public FilterEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the verdict cache or <code>null</code> if verdicts are not
+     *         cached
+     */
+    public VerdictCache getVerdictCache() {
+        return engine.getVerdictCache();
+    }
+
+    protected boolean isPermitted(final HttpHost host) throws IOException {
+        return evaluate(host) == Verdict.ALLOWED;
+    }
+
+    /**
+     * @param host the target of a request
+     * @return the outcome of checking the host against the current policy
+     * @throws IOException if the host name cannot be resolved
+     */
+    protected Verdict evaluate(final HttpHost host) throws IOException {
+        return engine.evaluate(host.getHostName(), host.getAddress());
+    }
+
+    /**
+     * @param host the target of a request
+     * @param proxy the first proxy on the route to the target or
+     *              <code>null</code> if the target is contacted directly
+     * @return the outcome of checking the host against the current policy
+     * @throws IOException if the host cannot be checked
+     */
+    protected Verdict evaluate(final HttpHost host, final HttpHost proxy) throws IOException {
+        if (proxy == null || proxyPolicy == null) {
+            return evaluate(host);
+        }
+        // the proxy connects to the host name, so an explicit address is not used
+        final Verdict retval = engine.evaluateName(engine.getPolicy(), host.getHostName(), null);
+        return retval != null ? retval : proxyPolicy.check(host, proxy);
+    }
+
+    /**
+     * @param context the context of a request
+     * @return the first proxy on the route of the request or
+     *         <code>null</code> if there is none or proxied targets are
+     *         resolved locally
+     */
+    protected HttpHost getProxy(final HttpContext context) {
+        if (proxyPolicy == null) {
+            return null;
+        }
+        final HttpRoute route = (HttpRoute) context.getAttribute(HTTP_ROUTE);
+        return route != null ? route.getProxyHost() : null;
+    }
+
+    protected static AddressResolver adapt(final DnsResolver resolver) {
+        return resolver != null ? resolver::resolve : null;
+    }
+
+    protected static DnsResolver adapt(final AddressResolver resolver) {
+        return resolver != null ? resolver::resolve : null;
+    }
+
+    protected HttpHost getHost(final HttpRequest request, final HttpContext context) throws HttpException {
+        final HttpHost host = (HttpHost) context.getAttribute(HTTP_TARGET_HOST);
+        if (host != null) {
+            return host;
+        }
+        final HttpRoute route = (HttpRoute) context.getAttribute(HTTP_ROUTE);
+        if (route != null) {
+            return route.getTargetHost();
+        }
+        final Header[] headers = request.getHeaders("Host");
+        if (headers.length == 1) {
+            final HttpHost retval = parseHost(headers[0].getValue());
+            if (retval != null) {
+                return retval;
+            }
+        }
+        log.error("Unable to determine host from: " + request + ", " + context);
+        throw new HttpException("No host specified");
+    }
+
+    /**
+     * Parse a <code>Host</code> header value of the form
+     * <code>host[:port]</code>, where the host may be a bracketed IPv6
+     * literal, e.g. <code>[fd00:ec2::254]:80</code>. A trailing dot is
+     * removed from a host name. IP address literals are recognised by
+     * the {@link FilterEngine}, so they are never resolved.
+     *
+     * <p>This allocates the host name and the {@link HttpHost}. Only the
+     * engine's subsequent check of an address literal is free of
+     * allocation.</p>
+     *
+     * @param value the value of the header
+     * @return the host or <code>null</code> if the value is not valid
+     */
+    protected HttpHost parseHost(final String value) {
+        final int length = value.length();
+        int start = 0;
+        int end;
+        int port = -1;
+        if (length > 0 && value.charAt(0) == '[') {
+            start = 1;
+            end = value.indexOf(']');
+            if (end < 0) {
+                return null;
+            }
+            if (end + 1 < length) {
+                if (value.charAt(end + 1) != ':') {
+                    return null;
+                }
+                port = parsePort(value, end + 2);
+            }
+        } else {
+            end = value.indexOf(':');
+            if (end < 0) {
+                end = length;
+            } else if (value.indexOf(':', end + 1) >= 0) {
+                // an IPv6 literal without brackets has no port
+                end = length;
+            } else {
+                port = parsePort(value, end + 1);
+            }
+        }
+        if (start == 0 && end > 0 && value.charAt(end - 1) == '.') {
+            end--;
+        }
+        if (end <= start || port < -1) {
+            return null;
+        }
+        return new HttpHost(value.substring(start, end), port);
+    }
+
+    /**
+     * @return the port, -1 if there are no digits, or -2 if the port is
+     *         not valid
+     */
+    protected static int parsePort(final String value, final int start) {
+        final int length = value.length();
+        if (start == length) {
+            return -1;
+        }
+        int retval = 0;
+        for (int i = start; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9' || i - start >= 5) {
+                return -2;
+            }
+            retval = retval * 10 + (c - '0');
+        }
+        return retval <= 0xFFFF ? retval : -2;
+    }
+
+    /**
+     * Checks connections as they are opened. Each connection is marked
+     * with the policy under which it was approved, so only connections
+     * approved under an earlier policy are checked when reused.
+     */
+    protected class FilteringConnectionManager implements HttpClientConnectionManager, Closeable {
+
+        private static final String approvedPolicy = "com.macasaet.apache.http.approved-policy";
+        private static final String rejectedPolicy = "com.macasaet.apache.http.rejected-policy";
+
+        private final HttpClientConnectionManager delegate;
+
+        public FilteringConnectionManager(final HttpClientConnectionManager delegate) {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate must not be null");
+            }
+            this.delegate = delegate;
+        }
+
+        public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+            final ConnectionRequest request = delegate.requestConnection(route, state);
+            return new ConnectionRequest() {
+
+                public boolean cancel() {
+                    return request.cancel();
+                }
+
+                public HttpClientConnection get(final long timeout, final TimeUnit unit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    final HttpClientConnection retval = request.get(timeout, unit);
+                    if (retval.isOpen()) {
+                        revalidate(retval, route);
+                    }
+                    return retval;
+                }
+            };
+        }
+
+        public void connect(final HttpClientConnection connection, final HttpRoute route, final int connectTimeout,
+                final HttpContext context) throws IOException {
+            final HttpHost target = route.getTargetHost();
+            if (route.getProxyHost() != null) {
+                // through a proxy, the delegate does not resolve the target and the remote address is the proxy's
+                if (check(target, route.getProxyHost()) != Verdict.ALLOWED) {
+                    throw blocked(target);
+                }
+                delegate.connect(connection, route, connectTimeout, context);
+                approve(connection, engine.getPolicy());
+                return;
+            }
+            // an older snapshot is safe: it only causes the connection to be checked again
+            final FilterPolicy currentPolicy = engine.getPolicy();
+            final FilterListener listener = engine.getListener();
+            final String hostName = target.getHostName();
+            final long start = listener != null ? System.nanoTime() : 0;
+            Verdict verdict = engine.evaluateName(currentPolicy, hostName, target.getAddress());
+            InetAddress[] addresses = null;
+            if (verdict == null || verdict == Verdict.ALLOWED) {
+                if (connection instanceof HttpContext
+                        && ((HttpContext) connection).getAttribute(rejectedPolicy) != null) {
+                    // a reused connection rejected by address has been shut down and cannot connect again
+                    verdict = Verdict.BLOCKED_BY_ADDRESS;
+                } else if (target.getAddress() == null && !currentPolicy.isTrustedHostName(hostName)
+                        && engine.evaluateLiteral(currentPolicy, hostName) == null) {
+                    // a cached verdict does not say where the delegate would connect, so every address is checked
+                    try {
+                        addresses = engine.resolve(hostName);
+                    } catch (final UnknownHostException uhe) {
+                        if (listener != null) {
+                            listener.onDecision(hostName, Verdict.RESOLUTION_FAILURE, System.nanoTime() - start);
+                        }
+                        throw uhe;
+                    }
+                    verdict = engine.evaluateAddresses(currentPolicy, hostName, addresses);
+                }
+            }
+            if (listener != null) {
+                listener.onDecision(hostName, verdict, System.nanoTime() - start);
+            }
+            if (verdict != Verdict.ALLOWED) {
+                throw blocked(target);
+            }
+            if (addresses == null) {
+                // the delegate connects to the explicit address, the literal, or the trusted name
+                delegate.connect(connection, route, connectTimeout, context);
+            } else {
+                connect(connection, route, addresses, connectTimeout, context);
+            }
+            approve(connection, currentPolicy);
+        }
+
+        /**
+         * Connect to the first of the checked addresses that accepts the
+         * connection, so that the delegate does not resolve the host name
+         * again.
+         */
+        protected void connect(final HttpClientConnection connection, final HttpRoute route,
+                final InetAddress[] addresses, final int connectTimeout, final HttpContext context)
+                throws IOException {
+            final HttpHost target = route.getTargetHost();
+            for (int i = 0; i < addresses.length; i++) {
+                // the host name is kept for the Host header, SNI, and certificate verification
+                final HttpHost checkedTarget = new HttpHost(addresses[i], target.getHostName(), target.getPort(),
+                        target.getSchemeName());
+                try {
+                    final HttpRoute checkedRoute = new HttpRoute(checkedTarget, route.getLocalAddress(),
+                            route.isSecure());
+                    delegate.connect(connection, checkedRoute, connectTimeout, context);
+                    return;
+                } catch (final ConnectException | ConnectTimeoutException e) {
+                    if (i == addresses.length - 1) {
+                        throw e;
+                    }
+                    log.debug("Unable to connect to " + addresses[i] + ", trying the next address", e);
+                }
+            }
+            throw new UnknownHostException(target.getHostName());
+        }
+
+        public void upgrade(final HttpClientConnection connection, final HttpRoute route, final HttpContext context)
+                throws IOException {
+            delegate.upgrade(connection, route, context);
+        }
+
+        public void routeComplete(final HttpClientConnection connection, final HttpRoute route,
+                final HttpContext context) throws IOException {
+            delegate.routeComplete(connection, route, context);
+        }
+
+        public void releaseConnection(final HttpClientConnection connection, final Object newState,
+                final long validDuration, final TimeUnit timeUnit) {
+            delegate.releaseConnection(connection, newState, validDuration, timeUnit);
+        }
+
+        public void closeIdleConnections(final long idletime, final TimeUnit timeUnit) {
+            delegate.closeIdleConnections(idletime, timeUnit);
+        }
+
+        public void closeExpiredConnections() {
+            delegate.closeExpiredConnections();
+        }
+
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        public void close() {
+            shutdown();
+        }
+
+        /**
+         * Check a reused connection if it was approved under an earlier
+         * policy. If it is no longer permitted, it is shut down and
+         * marked so that the client's attempt to reconnect it is refused.
+         */
+        protected void revalidate(final HttpClientConnection connection, final HttpRoute route) {
+            final FilterPolicy currentPolicy = engine.getPolicy();
+            // connections that cannot record an approval are checked on every reuse
+            if (connection instanceof HttpContext
+                    && ((HttpContext) connection).getAttribute(approvedPolicy) == currentPolicy) {
+                return;
+            }
+            final HttpHost target = route.getTargetHost();
+            if (target.getAddress() == null && currentPolicy.isTrustedHostName(target.getHostName())) {
+                approve(connection, currentPolicy);
+                return;
+            }
+            if (route.getProxyHost() != null && proxyPolicy != null) {
+                try {
+                    if (evaluate(target, route.getProxyHost()) == Verdict.ALLOWED) {
+                        approve(connection, currentPolicy);
+                        return;
+                    }
+                } catch (final IOException ioe) {
+                    log.debug("Unable to check proxied target: " + target, ioe);
+                }
+            }
+            final InetAddress remoteAddress = route.getProxyHost() == null ? getRemoteAddress(connection) : null;
+            if (remoteAddress != null && !currentPolicy.isBlockedHostName(target.getHostName())
+                    && !currentPolicy.isBlockedAddress(remoteAddress)) {
+                approve(connection, currentPolicy);
+                return;
+            }
+            if (connection instanceof HttpContext) {
+                ((HttpContext) connection).setAttribute(rejectedPolicy, currentPolicy);
+            }
+            try {
+                connection.shutdown();
+            } catch (final IOException ioe) {
+                log.debug("Unable to shut down connection: " + connection, ioe);
+            }
+        }
+
+        protected void approve(final HttpClientConnection connection, final FilterPolicy approvingPolicy) {
+            if (connection instanceof HttpContext) {
+                ((HttpContext) connection).setAttribute(approvedPolicy, approvingPolicy);
+            }
+        }
+
+        protected InetAddress getRemoteAddress(final HttpClientConnection connection) {
+            return connection instanceof HttpInetConnection ? ((HttpInetConnection) connection).getRemoteAddress()
+                    : null;
+        }
+
+        protected UnknownHostException blocked(final HttpHost host) {
+            if (logBlocks) {
+                log.warn("Blocking connection to: " + host);
+            }
+            return new UnknownHostException("Blocked host.");
+        }
+    }
+
+    /**
+     * Builder for {@link InternalAddressFilteringRequestInterceptor}
+     * instances.
+     */
+    public static class Builder {
+
+        private FilterEngine engine;
+        private DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+        private final FilterEngine.Builder engineBuilder = FilterEngine.custom();
+        private boolean logBlocks = true;
+        private ProxyPolicy proxyPolicy;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param engine an engine shared with other clients. This takes
+         *               precedence over all of the other rule settings,
+         *               and its resolver is used in place of
+         *               {@link #setDnsResolver(DnsResolver)}.
+         * @return this builder
+         */
+        public Builder setEngine(final FilterEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * @param dnsResolver the resolver used to look up the addresses
+         *                    of target hosts
+         * @return this builder
+         */
+        public Builder setDnsResolver(final DnsResolver dnsResolver) {
+            this.dnsResolver = dnsResolver;
+            return this;
+        }
+
+        /**
+         * @param verdictCache a cache for allow/deny decisions or
+         *                     <code>null</code> to evaluate every request
+         * @return this builder
+         */
+        public Builder setVerdictCache(final VerdictCache verdictCache) {
+            engineBuilder.setVerdictCache(verdictCache);
+            return this;
+        }
+
+        /**
+         * @param blockedHosts the host names to block, along with their
+         *                     subdomains, <em>instead of</em>
+         *                     {@link InternalAddressFilteringRequestInterceptor#defaultBlockedHosts}
+         * @return this builder
+         */
+        public Builder setBlockedHosts(final HostNameTrie blockedHosts) {
+            engineBuilder.setBlockedHosts(blockedHosts);
+            return this;
+        }
+
+        /**
+         * @param addressRanges address ranges to block or allow in
+         *                      addition to the link local, site local,
+         *                      loopback, and wildcard addresses that are
+         *                      blocked by default
+         * @return this builder
+         */
+        public Builder setAddressRanges(final AddressRangeTrie addressRanges) {
+            engineBuilder.setAddressRanges(addressRanges);
+            return this;
+        }
+
+        /**
+         * @param trustedHosts host names to permit without resolving
+         *                     them. These are consulted before any other
+         *                     rule, so they should be limited to names
+         *                     whose DNS records are under your control.
+         * @return this builder
+         */
+        public Builder setTrustedHosts(final HostNameSet trustedHosts) {
+            engineBuilder.setTrustedHosts(trustedHosts);
+            return this;
+        }
+
+        /**
+         * @param policy the source of the rules to apply, consulted on
+         *               every request, e.g. a
+         *               {@link ReloadingFilterPolicy}. This takes
+         *               precedence over
+         *               {@link #setBlockedHosts(HostNameTrie)},
+         *               {@link #setAddressRanges(AddressRangeTrie)}, and
+         *               {@link #setTrustedHosts(HostNameSet)}.
+         * @return this builder
+         */
+        public Builder setPolicy(final Supplier<FilterPolicy> policy) {
+            engineBuilder.setPolicy(policy);
+            return this;
+        }
+
+        /**
+         * @param listener notified of every decision, e.g. a
+         *                 {@link FilterMetrics}. Listeners are invoked in
+         *                 the order in which they were added.
+         * @return this builder
+         */
+        public Builder addListener(final FilterListener listener) {
+            engineBuilder.addListener(listener);
+            return this;
+        }
+
+        /**
+         * @param auditLog receives blocked requests in place of the
+         *                 warning that is otherwise logged on the
+         *                 requesting thread
+         * @return this builder
+         */
+        public Builder setAuditLog(final AuditLog auditLog) {
+            addListener(auditLog);
+            logBlocks = false;
+            return this;
+        }
+
+        /**
+         * <p>Enable the proxy-aware mode, in which targets reached
+         * through a forward proxy are not resolved locally because the
+         * proxy resolves them. Proxied targets are checked against the
+         * host name and IP address literal rules, and those that the
+         * rules do not decide are passed to the proxy policy, e.g.
+         * {@link ProxyPolicy#trustProxy} for a proxy that blocks internal
+         * addresses itself. Targets that are contacted directly are
+         * checked in full.</p>
+         *
+         * <p>With {@link InternalAddressFilteringRequestInterceptor#installWithResolver(HttpClientBuilder)},
+         * the connection manager still resolves the proxy's own host
+         * name, so a proxy with an internal address must be listed in
+         * {@link #setTrustedHosts(HostNameSet)}.</p>
+         *
+         * @param proxyPolicy decides proxied targets that are not decided
+         *                    by the rules, or <code>null</code> (the
+         *                    default) to resolve proxied targets locally
+         * @return this builder
+         */
+        public Builder setProxyPolicy(final ProxyPolicy proxyPolicy) {
+            this.proxyPolicy = proxyPolicy;
+            return this;
+        }
+
+        public InternalAddressFilteringRequestInterceptor build() {
+            if (engine != null) {
+                return new InternalAddressFilteringRequestInterceptor(engine, adapt(engine.getResolver()), logBlocks,
+                        proxyPolicy);
+            }
+            return new InternalAddressFilteringRequestInterceptor(
+                    engineBuilder.setResolver(adapt(dnsResolver)).build(), dnsResolver, logBlocks, proxyPolicy);
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+
+/**
+ * <p>Decides targets that are reached through a forward proxy. The proxy,
+ * rather than the client, resolves the target's host name, so resolving
+ * it locally only adds latency and may not be possible at all on
+ * networks without external DNS. When a proxy policy is configured,
+ * proxied targets are checked against the host name and IP address
+ * literal rules, and only those that are not decided by the rules are
+ * passed to the proxy policy.</p>
+ *
+ * <p>Implementations may, for example, consult the proxy's own access
+ * controls or query a resolver on the proxy's side of the network. They
+ * may be invoked from many threads at once.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public interface ProxyPolicy {
+
+    /**
+     * Permits every target that the name and literal rules allow, for
+     * proxies that block internal addresses themselves.
+     */
+    ProxyPolicy trustProxy = (target, proxy) -> Verdict.ALLOWED;
+
+    /**
+     * @param target a target whose host name is neither blocked nor
+     *               trusted and is not an IP address literal
+     * @param proxy the first proxy on the route to the target
+     * @return the outcome of checking the target
+     * @throws IOException if the target cannot be checked
+     */
+    Verdict check(HttpHost target, HttpHost proxy) throws IOException;
+
+}
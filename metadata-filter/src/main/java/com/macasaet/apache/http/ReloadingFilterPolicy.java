@@ -0,0 +1,209 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>A {@link FilterPolicy} backed by a properties file that is reloaded
+ * whenever it changes. The file is polled from a single background
+ * thread which compiles the new rules and then publishes them with one
+ * volatile write, so request threads never block and never see a
+ * partially built rule set. If the file becomes unreadable or invalid,
+ * the previous policy remains in effect and the error is logged and
+ * available from {@link #getLastError()}.</p>
+ *
+ * <p>The file is polled rather than watched because
+ * {@link java.nio.file.WatchService} does not report changes made by
+ * replacing a symbolic link, which is how many configuration management
+ * systems publish files.</p>
+ *
+ * <p>The safest way to update the file is to write a new file and
+ * rename it over the old one, which replaces it atomically. A file that
+ * is rewritten in place may be polled while it is only partly written,
+ * so it is read repeatedly until two consecutive reads agree before the
+ * rules are compiled. A file that is still changing is retried on the
+ * next poll.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class ReloadingFilterPolicy implements Supplier<FilterPolicy>, Closeable {
+
+    private static final String missing = "missing";
+    private static final int maxReads = 4;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private final Path path;
+    private final ScheduledExecutorService executor;
+
+    private volatile FilterPolicy policy;
+    private volatile Exception lastError;
+    // guarded by this
+    private Object lastVersion;
+
+    /**
+     * Load the policy and start polling the file for changes.
+     *
+     * @param path a properties file as described in {@link FilterPolicy}
+     * @param interval how often to check the file for changes
+     * @param unit the unit of the interval
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file contains invalid rules
+     */
+    public ReloadingFilterPolicy(final Path path, final long interval, final TimeUnit unit) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.path = path;
+        synchronized (this) {
+            lastVersion = version();
+            policy = read();
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread retval = new Thread(runnable, "filter-policy-reloader: " + path.getFileName());
+            retval.setDaemon(true);
+            return retval;
+        });
+        executor.scheduleWithFixedDelay(this::poll, interval, interval, unit);
+    }
+
+    /**
+     * @return the most recently loaded valid policy
+     */
+    public FilterPolicy get() {
+        return policy;
+    }
+
+    /**
+     * @return the error from the most recent load attempt or
+     *         <code>null</code> if it succeeded
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Reload the policy if the file has changed since it was last read.
+     *
+     * @return true if a new policy was published
+     */
+    public synchronized boolean poll() {
+        Object version;
+        try {
+            version = version();
+        } catch (final NoSuchFileException nsfe) {
+            version = missing;
+        } catch (final IOException ioe) {
+            return fail(ioe);
+        }
+        if (version.equals(lastVersion)) {
+            return false;
+        }
+        if (version == missing) {
+            lastVersion = version;
+            return fail(new NoSuchFileException(path.toString()));
+        }
+        // only a successful load records the version, so a file that was still being written is read again
+        if (!reload()) {
+            return false;
+        }
+        lastVersion = version;
+        return true;
+    }
+
+    /**
+     * Unconditionally reload the policy.
+     *
+     * @return true if a new policy was published
+     */
+    public synchronized boolean reload() {
+        final FilterPolicy replacement;
+        try {
+            replacement = read();
+        } catch (final IOException | RuntimeException e) {
+            return fail(e);
+        }
+        policy = replacement;
+        lastError = null;
+        log.info("Loaded filter policy from: " + path);
+        return true;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    protected boolean fail(final Exception e) {
+        if (e instanceof NoSuchFileException) {
+            log.error("Filter policy file is missing, retaining previous policy: " + path);
+        } else {
+            log.error("Unable to load filter policy, retaining previous policy: " + path, e);
+        }
+        lastError = e;
+        return false;
+    }
+
+    /**
+     * Parse the file once two consecutive reads of it agree.
+     *
+     * @return the rules in the file
+     * @throws IOException if the file cannot be read or is still changing
+     */
+    protected FilterPolicy read() throws IOException {
+        byte[] contents = readContents();
+        for (int i = maxReads; --i > 0;) {
+            final byte[] confirmation = readContents();
+            if (Arrays.equals(contents, confirmation)) {
+                final Properties properties = new Properties();
+                properties.load(new ByteArrayInputStream(contents));
+                return FilterPolicy.parse(properties);
+            }
+            contents = confirmation;
+        }
+        throw new IOException("Filter policy file is still being written: " + path);
+    }
+
+    protected byte[] readContents() throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    protected Object version() throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        // the file key changes when the file is replaced, even if the replacement has the same time and size
+        return attributes.lastModifiedTime().toMillis() + ":" + attributes.size() + ":" + attributes.fileKey();
+    }
+
+}
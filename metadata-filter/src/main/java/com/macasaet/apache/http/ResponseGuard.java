@@ -0,0 +1,429 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+*/
+package com.macasaet.apache.http;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_REQUEST;
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+
+/**
+ * <p>An {@link HttpResponseInterceptor} that rejects responses from
+ * untrusted hosts whose bodies are not of an expected media type or are
+ * larger than expected. It complements
+ * {@link InternalAddressFilteringRequestInterceptor} for clients that
+ * fetch user-provided URLs.</p>
+ *
+ * <p>A response with a disallowed <code>Content-Type</code> or a
+ * declared <code>Content-Length</code> above the limit is rejected
+ * before any of its body is read. Otherwise the body is counted as it
+ * is consumed, and reading fails as soon as it exceeds the limit. In
+ * either case the connection is closed rather than drained, so the
+ * remainder of the body is never transferred. Closing a body early
+ * drains it only up to the limit so that the connection can be
+ * reused.</p>
+ *
+ * <p>Response interceptors see every hop of a redirect. Redirects that
+ * the client will follow are exempt from the content type allowlist,
+ * since their bodies are never returned to the caller, but not from the
+ * size limit, since the client discards them before following the
+ * redirect.</p>
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class ResponseGuard implements HttpResponseInterceptor {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Set<String> allowedContentTypes;
+    private final long maxContentLength;
+    private final boolean logRejections;
+    private final RedirectStrategy redirectStrategy;
+
+    /**
+     * @param allowedContentTypes the permitted media types, such as
+     *                            <code>application/json</code> or
+     *                            <code>image/*</code>, or an empty set to
+     *                            permit any content type
+     * @param maxContentLength the maximum number of body bytes to read,
+     *                         or a negative number for no limit
+     * @param logRejections whether to log a warning for every rejected
+     *                      response
+     * @param redirectStrategy the client's redirect strategy, used to
+     *                         recognise redirects that will be followed
+     */
+    protected ResponseGuard(final Set<String> allowedContentTypes, final long maxContentLength,
+            final boolean logRejections, final RedirectStrategy redirectStrategy) {
+        if (allowedContentTypes == null) {
+            throw new IllegalArgumentException("allowedContentTypes must not be null");
+        }
+        if (redirectStrategy == null) {
+            throw new IllegalArgumentException("redirectStrategy must not be null");
+        }
+        this.allowedContentTypes = Collections.unmodifiableSet(new HashSet<>(allowedContentTypes));
+        this.maxContentLength = maxContentLength;
+        this.logRejections = logRejections;
+        this.redirectStrategy = redirectStrategy;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    /**
+     * Install this guard after the client's own response interceptors so
+     * that the limit applies to the decompressed body.
+     *
+     * @param builder the builder for the client to protect
+     */
+    public void install(final HttpClientBuilder builder) {
+        builder.addInterceptorLast(this);
+    }
+
+    public HttpProcessor wrap(final HttpProcessor delegate) {
+        return new HttpProcessor() {
+
+            public void process(final HttpResponse response, final HttpContext context)
+                    throws HttpException, IOException {
+                delegate.process(response, context);
+                ResponseGuard.this.process(response, context);
+            }
+
+            public void process(final HttpRequest request, final HttpContext context)
+                    throws HttpException, IOException {
+                delegate.process(request, context);
+            }
+        };
+    }
+
+    public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        if (!allowedContentTypes.isEmpty() && !isFollowedRedirect(response, context)) {
+            final String mediaType = getMediaType(entity);
+            if (mediaType == null || !isAllowedMediaType(mediaType)) {
+                reject(response, context, "Unexpected content type: " + mediaType);
+            }
+        }
+        if (maxContentLength >= 0) {
+            if (entity.getContentLength() > maxContentLength) {
+                reject(response, context, "Response body too large: " + entity.getContentLength());
+            }
+            response.setEntity(new LimitedEntity(entity, response));
+        }
+    }
+
+    /**
+     * @param response a response
+     * @param context the context of the request
+     * @return true if the client will follow the response to another
+     *         location rather than return it
+     * @throws HttpException if the redirect is invalid
+     */
+    protected boolean isFollowedRedirect(final HttpResponse response, final HttpContext context)
+            throws HttpException {
+        final HttpRequest request = (HttpRequest) context.getAttribute(HTTP_REQUEST);
+        return request != null && HttpClientContext.adapt(context).getRequestConfig().isRedirectsEnabled()
+                && redirectStrategy.isRedirected(request, response, context);
+    }
+
+    public Set<String> getAllowedContentTypes() {
+        return allowedContentTypes;
+    }
+
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * @param mediaType a media type without parameters, in lower case
+     * @return true if the type, its wildcard subtype, or any type is
+     *         permitted
+     */
+    protected boolean isAllowedMediaType(final String mediaType) {
+        if (allowedContentTypes.contains(mediaType) || allowedContentTypes.contains("*/*")) {
+            return true;
+        }
+        final int slash = mediaType.indexOf('/');
+        return slash > 0 && allowedContentTypes.contains(mediaType.substring(0, slash) + "/*");
+    }
+
+    protected static String getMediaType(final HttpEntity entity) {
+        final Header header = entity.getContentType();
+        if (header == null || header.getValue() == null) {
+            return null;
+        }
+        final String value = header.getValue();
+        final int semicolon = value.indexOf(';');
+        final String retval = (semicolon < 0 ? value : value.substring(0, semicolon)).trim();
+        return retval.isEmpty() ? null : retval.toLowerCase(Locale.ROOT);
+    }
+
+    protected void reject(final HttpResponse response, final HttpContext context, final String reason)
+            throws HttpException {
+        if (logRejections) {
+            log.warn("Rejecting response from: " + context.getAttribute(HTTP_TARGET_HOST) + ", " + reason);
+        }
+        abort(response, null);
+        throw new HttpException(reason);
+    }
+
+    /**
+     * Close the connection behind a response without reading the rest of
+     * its body.
+     *
+     * @param response the response to abandon
+     * @param stream the body being read, if any
+     */
+    protected void abort(final HttpResponse response, final InputStream stream) {
+        try {
+            if (stream instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) stream).abortConnection();
+            }
+            if (response instanceof Closeable) {
+                // the client's response closes the connection without consuming the entity
+                ((Closeable) response).close();
+            }
+        } catch (final IOException ioe) {
+            log.debug("Unable to abort response: " + response, ioe);
+        }
+    }
+
+    protected class LimitedEntity extends HttpEntityWrapper {
+
+        private final HttpResponse response;
+
+        public LimitedEntity(final HttpEntity wrappedEntity, final HttpResponse response) {
+            super(wrappedEntity);
+            this.response = response;
+        }
+
+        public InputStream getContent() throws IOException {
+            return new LimitedInputStream(super.getContent(), response);
+        }
+
+        public void writeTo(final OutputStream outStream) throws IOException {
+            try (InputStream stream = getContent()) {
+                final byte[] buffer = new byte[4096];
+                int count;
+                while ((count = stream.read(buffer)) != -1) {
+                    outStream.write(buffer, 0, count);
+                }
+            }
+        }
+
+        public boolean isStreaming() {
+            return true;
+        }
+
+        public boolean isRepeatable() {
+            return false;
+        }
+
+    }
+
+    protected class LimitedInputStream extends FilterInputStream {
+
+        private final HttpResponse response;
+        private long count;
+        private boolean aborted;
+
+        public LimitedInputStream(final InputStream in, final HttpResponse response) {
+            super(in);
+            this.response = response;
+        }
+
+        public int read() throws IOException {
+            final int retval = super.read();
+            if (retval != -1) {
+                count(1);
+            }
+            return retval;
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int retval = super.read(b, off, len);
+            if (retval > 0) {
+                count(retval);
+            }
+            return retval;
+        }
+
+        public long skip(final long n) throws IOException {
+            final long retval = super.skip(n);
+            if (retval > 0) {
+                count(retval);
+            }
+            return retval;
+        }
+
+        public void close() throws IOException {
+            if (aborted) {
+                return;
+            }
+            // closing drains the rest of the body, so read it here where it is counted
+            try {
+                final byte[] buffer = new byte[4096];
+                while (read(buffer) != -1) {
+                    // discard
+                }
+            } catch (final IOException ioe) {
+                if (aborted) {
+                    return;
+                }
+                throw ioe;
+            }
+            super.close();
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        protected void count(final long bytes) throws IOException {
+            count += bytes;
+            if (count > maxContentLength) {
+                if (!aborted) {
+                    aborted = true;
+                    if (logRejections) {
+                        log.warn("Aborting response exceeding " + maxContentLength + " bytes");
+                    }
+                    abort(response, in);
+                }
+                throw new IOException("Response body exceeds " + maxContentLength + " bytes");
+            }
+        }
+
+    }
+
+    /**
+     * Builder for {@link ResponseGuard} instances.
+     */
+    public static class Builder {
+
+        private final Set<String> allowedContentTypes = new HashSet<>();
+        private long maxContentLength = -1;
+        private boolean logRejections = true;
+        private RedirectStrategy redirectStrategy = DefaultRedirectStrategy.INSTANCE;
+
+        protected Builder() {
+        }
+
+        /**
+         * @param contentType a permitted media type, such as
+         *                    <code>image/png</code>, a type with any
+         *                    subtype, such as <code>image/*</code>, or
+         *                    <code>*&#47;*</code>. Responses without a
+         *                    content type are rejected once any type has
+         *                    been added.
+         * @return this builder
+         */
+        public Builder addAllowedContentType(final String contentType) {
+            if (contentType == null) {
+                throw new IllegalArgumentException("contentType must not be null");
+            }
+            final String mediaType = contentType.trim().toLowerCase(Locale.ROOT);
+            final int slash = mediaType.indexOf('/');
+            if (slash <= 0 || slash == mediaType.length() - 1 || mediaType.indexOf(';') >= 0
+                    || ("*".equals(mediaType.substring(0, slash)) && !"*/*".equals(mediaType))) {
+                throw new IllegalArgumentException("Invalid content type: " + contentType);
+            }
+            allowedContentTypes.add(mediaType);
+            return this;
+        }
+
+        /**
+         * @param contentTypes the permitted media types
+         * @return this builder
+         * @see #addAllowedContentType(String)
+         */
+        public Builder setAllowedContentTypes(final String... contentTypes) {
+            allowedContentTypes.clear();
+            for (final String contentType : contentTypes) {
+                addAllowedContentType(contentType);
+            }
+            return this;
+        }
+
+        /**
+         * @param maxContentLength the maximum number of body bytes to
+         *                         read, after any content decoding
+         * @return this builder
+         */
+        public Builder setMaxContentLength(final long maxContentLength) {
+            if (maxContentLength < 0) {
+                throw new IllegalArgumentException("maxContentLength must not be negative");
+            }
+            this.maxContentLength = maxContentLength;
+            return this;
+        }
+
+        /**
+         * @param logRejections whether to log a warning for every
+         *                      rejected response
+         * @return this builder
+         */
+        public Builder setLogRejections(final boolean logRejections) {
+            this.logRejections = logRejections;
+            return this;
+        }
+
+        /**
+         * @param redirectStrategy the redirect strategy of the client to
+         *                         protect, if it is not the default
+         * @return this builder
+         */
+        public Builder setRedirectStrategy(final RedirectStrategy redirectStrategy) {
+            this.redirectStrategy = redirectStrategy;
+            return this;
+        }
+
+        public ResponseGuard build() {
+            return new ResponseGuard(allowedContentTypes, maxContentLength, logRejections, redirectStrategy);
+        }
+
+    }
+
+}
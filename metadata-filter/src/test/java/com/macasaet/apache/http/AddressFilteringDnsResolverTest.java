@@ -0,0 +1,121 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.InMemoryDnsResolver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link AddressFilteringDnsResolver} and the single-lookup
+ * installation mode of {@link InternalAddressFilteringRequestInterceptor}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AddressFilteringDnsResolverTest {
+
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final InMemoryDnsResolver hosts = new InMemoryDnsResolver();
+    private final DnsResolver countingResolver = host -> {
+        lookups.incrementAndGet();
+        return hosts.resolve(host);
+    };
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        hosts.add("public.example", InetAddress.getByName("93.184.216.34"));
+        hosts.add("metadata.example", InetAddress.getByName("169.254.169.254"));
+        hosts.add("mixed.example", InetAddress.getByName("93.184.216.34"), InetAddress.getByName("10.0.0.1"));
+    }
+
+    @Test
+    public final void verifyPublicAddressesAreReturned() throws UnknownHostException {
+        // given
+        final AddressFilteringDnsResolver resolver = new AddressFilteringDnsResolver(countingResolver);
+
+        // when
+        final InetAddress[] result = resolver.resolve("public.example");
+
+        // then
+        assertArrayEquals(new InetAddress[] { InetAddress.getByName("93.184.216.34") }, result);
+    }
+
+    @Test
+    public final void verifyInternalAddressesAreRejected() {
+        // given
+        final AddressFilteringDnsResolver resolver = new AddressFilteringDnsResolver(countingResolver);
+
+        // when / then
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("metadata.example"));
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("mixed.example"));
+    }
+
+    @Test
+    public final void verifyHostIsResolvedOnlyOnce() throws IOException {
+        // given
+        final HttpClientBuilder builder = HttpClientBuilder.create();
+        new InternalAddressFilteringRequestInterceptor(countingResolver).installWithResolver(builder);
+
+        try (CloseableHttpClient client = builder.build()) {
+            // when
+            final UnknownHostException result = assertThrows(UnknownHostException.class,
+                    () -> client.execute(new HttpGet("http://metadata.example/latest/meta-data/")));
+
+            // then
+            assertEquals("Blocked host.", result.getMessage());
+            assertEquals(1, lookups.get());
+        }
+    }
+
+    @Test
+    public final void verifyResolverDecisionsAreReported() throws IOException {
+        // given
+        final FilterMetrics metrics = new FilterMetrics();
+        final HttpClientBuilder builder = HttpClientBuilder.create();
+        InternalAddressFilteringRequestInterceptor.custom().setDnsResolver(hosts).addListener(metrics).build()
+                .installWithResolver(builder);
+
+        try (CloseableHttpClient client = builder.build()) {
+            // when
+            assertThrows(UnknownHostException.class,
+                    () -> client.execute(new HttpGet("http://metadata.example/latest/meta-data/")));
+            assertThrows(ClientProtocolException.class,
+                    () -> client.execute(new HttpGet("http://metadata.google.internal/")));
+        }
+
+        // then
+        assertEquals(1, metrics.getBlockedByAddressCount());
+        assertEquals(1, metrics.getBlockedByNameCount());
+        assertEquals(1, metrics.getResolutionCount());
+    }
+
+}
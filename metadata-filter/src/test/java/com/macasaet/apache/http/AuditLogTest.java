@@ -0,0 +1,218 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link AuditLog}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class AuditLogTest {
+
+    private static final long interval = TimeUnit.SECONDS.toNanos(10);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public final void verifyRepeatedBlocksAreSummarised() {
+        // given
+        final AuditLog auditLog = auditLog(16, 10);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            auditLog.onDecision("metadata.example", Verdict.BLOCKED_BY_ADDRESS, 0);
+        }
+        auditLog.drain();
+        clock.addAndGet(interval);
+        auditLog.drain();
+
+        // then
+        assertEquals(Arrays.asList("Blocking connection to: metadata.example (BLOCKED_BY_ADDRESS)",
+                "Blocking connection to: metadata.example, 4 further blocks suppressed"), messages);
+    }
+
+    @Test
+    public final void verifySummaryIsDeferredUntilIntervalElapses() {
+        // given
+        final AuditLog auditLog = auditLog(16, 10);
+
+        // when
+        auditLog.onDecision("metadata.example", Verdict.BLOCKED_BY_ADDRESS, 0);
+        auditLog.onDecision("metadata.example", Verdict.BLOCKED_BY_ADDRESS, 0);
+        clock.addAndGet(interval - 1);
+        auditLog.drain();
+
+        // then
+        assertEquals(1, messages.size());
+    }
+
+    @Test
+    public final void verifyAllowedRequestsAreNotLogged() {
+        // given
+        final AuditLog auditLog = auditLog(16, 10);
+
+        // when
+        auditLog.onDecision("public.example", Verdict.ALLOWED, 0);
+        auditLog.onDecision("unknown.example", Verdict.RESOLUTION_FAILURE, 0);
+        auditLog.close();
+
+        // then
+        assertEquals(Collections.emptyList(), messages);
+    }
+
+    @Test
+    public final void verifyMessagesAreRateLimited() {
+        // given
+        final AuditLog auditLog = auditLog(16, 2);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            auditLog.onDecision("host-" + i + ".example", Verdict.BLOCKED_BY_NAME, 0);
+        }
+        auditLog.onDecision("host-0.example", Verdict.BLOCKED_BY_NAME, 0);
+        clock.addAndGet(interval);
+        auditLog.drain();
+
+        // then
+        assertEquals(Arrays.asList("Blocking connection to: host-0.example (BLOCKED_BY_NAME)",
+                "Blocking connection to: host-1.example (BLOCKED_BY_NAME)",
+                "4 further blocks suppressed for 4 hosts"), messages);
+    }
+
+    @Test
+    public final void verifyTrackedHostsAreBounded() {
+        // given
+        final AuditLog auditLog = auditLog(16, 10, 2);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            auditLog.onDecision("host-" + i + ".example", Verdict.BLOCKED_BY_NAME, 0);
+        }
+        auditLog.onDecision("host-4.example", Verdict.BLOCKED_BY_NAME, 0);
+        clock.addAndGet(interval);
+        auditLog.drain();
+
+        // then
+        assertEquals(Arrays.asList("Blocking connection to: host-0.example (BLOCKED_BY_NAME)",
+                "Blocking connection to: host-1.example (BLOCKED_BY_NAME)",
+                "4 further blocks suppressed for other hosts"), messages);
+    }
+
+    @Test
+    public final void verifyOverflowIsCounted() {
+        // given
+        final AuditLog auditLog = auditLog(4, 10);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            auditLog.onDecision("metadata.example", Verdict.BLOCKED_BY_ADDRESS, 0);
+        }
+        auditLog.close();
+
+        // then
+        assertEquals(Arrays.asList("Blocking connection to: metadata.example (BLOCKED_BY_ADDRESS)",
+                "Blocking connection to: metadata.example, 3 further blocks suppressed",
+                "6 further blocks suppressed, audit queue full"), messages);
+    }
+
+    @Test
+    public final void verifyNoBlocksAreLostUnderContention() throws InterruptedException {
+        // given
+        final AuditLog auditLog = auditLog(64, 10);
+        final int threads = 4;
+        final int blocksPerThread = 10_000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = threads; --i >= 0;) {
+            new Thread(() -> {
+                for (int j = 0; j < blocksPerThread; j++) {
+                    auditLog.onDecision("metadata.example", Verdict.BLOCKED_BY_ADDRESS, 0);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        // when
+        while (!done.await(1, TimeUnit.MILLISECONDS)) {
+            auditLog.drain();
+        }
+        auditLog.close();
+
+        // then
+        long total = 0;
+        final Pattern count = Pattern.compile("(\\d+) further blocks suppressed");
+        for (final String message : messages) {
+            final Matcher matcher = count.matcher(message);
+            total += matcher.find() ? Long.parseLong(matcher.group(1)) : 1;
+        }
+        assertEquals(threads * blocksPerThread, total);
+    }
+
+    @Test
+    public final void verifyInterceptorReportsBlocks() {
+        // given
+        final AuditLog auditLog = auditLog(16, 10);
+        final InternalAddressFilteringRequestInterceptor interceptor = InternalAddressFilteringRequestInterceptor
+                .custom().setAuditLog(auditLog).build();
+        final HttpContext context = new BasicHttpContext();
+        context.setAttribute(HTTP_TARGET_HOST, new HttpHost("metadata.google.internal"));
+
+        // when
+        assertThrows(HttpException.class,
+                () -> interceptor.process(new HttpGet("http://metadata.google.internal/"), context));
+        auditLog.drain();
+
+        // then
+        assertEquals(Collections.singletonList("Blocking connection to: metadata.google.internal (BLOCKED_BY_NAME)"),
+                messages);
+    }
+
+    protected AuditLog auditLog(final int capacity, final int maxMessagesPerInterval) {
+        return auditLog(capacity, maxMessagesPerInterval, 1024);
+    }
+
+    protected AuditLog auditLog(final int capacity, final int maxMessagesPerInterval, final int maxHostsPerInterval) {
+        return new AuditLog(capacity, interval, maxMessagesPerInterval, maxHostsPerInterval, clock::get, false) {
+            protected void emit(final String message) {
+                messages.add(message);
+            }
+        };
+    }
+
+}
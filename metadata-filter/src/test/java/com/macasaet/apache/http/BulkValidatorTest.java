@@ -0,0 +1,226 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpException;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.InMemoryDnsResolver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link BulkValidator}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class BulkValidatorTest {
+
+    private final InMemoryDnsResolver hosts = new InMemoryDnsResolver();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final DnsResolver countingResolver = host -> {
+        lookups.incrementAndGet();
+        // like DNS, and unlike the in-memory resolver, names are case-insensitive
+        return hosts.resolve(host.toLowerCase(Locale.ENGLISH));
+    };
+    private final ExecutorService executor = Executors.newFixedThreadPool(16);
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        hosts.add("public.example", InetAddress.getByName("93.184.216.34"));
+        hosts.add("metadata.example", InetAddress.getByName("169.254.169.254"));
+        for (int i = 0; i < 20; i++) {
+            hosts.add("host-" + i + ".example", InetAddress.getByName("93.184.216." + i));
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public final void verifyEachHostIsCheckedOnce() throws Exception {
+        // given
+        final BulkValidator validator = new BulkValidator(new InternalAddressFilteringRequestInterceptor(countingResolver),
+                executor, 4);
+        final List<URI> uris = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            uris.add(URI.create("http://public.example/page/" + i));
+            uris.add(URI.create("https://METADATA.example:8443/latest/meta-data/" + i));
+        }
+        final Map<URI, BulkValidator.Result<URI>> results = new ConcurrentHashMap<>();
+
+        // when
+        validator.validateUris(uris, result -> results.put(result.getItem(), result)).get(10, TimeUnit.SECONDS);
+
+        // then
+        assertEquals(2_000, results.size());
+        assertEquals(2, lookups.get());
+        assertTrue(results.get(URI.create("http://public.example/page/7")).isPermitted());
+        assertEquals(Verdict.BLOCKED_BY_ADDRESS,
+                results.get(URI.create("https://METADATA.example:8443/latest/meta-data/7")).getVerdict());
+    }
+
+    @Test
+    public final void verifyInvalidItemsAreReported() throws Exception {
+        // given
+        final BulkValidator validator = new BulkValidator(new InternalAddressFilteringRequestInterceptor(countingResolver),
+                executor, 4);
+        final Map<URI, BulkValidator.Result<URI>> results = new ConcurrentHashMap<>();
+
+        // when
+        validator.validateUris(Arrays.asList(URI.create("/relative"), URI.create("http://unknown.example/"),
+                URI.create("http://metadata.google.internal/")), result -> results.put(result.getItem(), result))
+                .get(10, TimeUnit.SECONDS);
+
+        // then
+        final BulkValidator.Result<URI> relative = results.get(URI.create("/relative"));
+        assertNull(relative.getHost());
+        assertEquals(Verdict.RESOLUTION_FAILURE, relative.getVerdict());
+        assertTrue(relative.getFailure() instanceof HttpException);
+        final BulkValidator.Result<URI> unknown = results.get(URI.create("http://unknown.example/"));
+        assertEquals(Verdict.RESOLUTION_FAILURE, unknown.getVerdict());
+        assertTrue(unknown.getFailure() instanceof UnknownHostException);
+        assertEquals(Verdict.BLOCKED_BY_NAME, results.get(URI.create("http://metadata.google.internal/")).getVerdict());
+    }
+
+    @Test
+    public final void verifyConcurrencyIsBounded() throws Exception {
+        // given
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        final DnsResolver slowResolver = host -> {
+            maximum.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+                return hosts.resolve(host);
+            } catch (final InterruptedException ie) {
+                throw new UnknownHostException(host);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        };
+        final BulkValidator validator = new BulkValidator(new InternalAddressFilteringRequestInterceptor(slowResolver),
+                executor, 4);
+        final List<URI> uris = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            uris.add(URI.create("http://host-" + i + ".example/"));
+        }
+        final AtomicInteger permitted = new AtomicInteger();
+
+        // when
+        validator.validateUris(uris, result -> {
+            if (result.isPermitted()) {
+                permitted.incrementAndGet();
+            }
+        }).get(10, TimeUnit.SECONDS);
+
+        // then
+        assertEquals(20, permitted.get());
+        assertTrue(maximum.get() <= 4, "maximum concurrent lookups: " + maximum.get());
+        assertTrue(maximum.get() > 1, "lookups were not concurrent");
+    }
+
+    @Test
+    public final void verifyResultsAreStreamed() throws Exception {
+        // given
+        final CountDownLatch firstResult = new CountDownLatch(1);
+        final DnsResolver resolver = host -> {
+            if (host.equals("host-0.example")) {
+                try {
+                    // only completes if the other result is delivered first
+                    if (!firstResult.await(10, TimeUnit.SECONDS)) {
+                        throw new UnknownHostException(host);
+                    }
+                } catch (final InterruptedException ie) {
+                    throw new UnknownHostException(host);
+                }
+            }
+            return hosts.resolve(host);
+        };
+        final BulkValidator validator = new BulkValidator(new InternalAddressFilteringRequestInterceptor(resolver),
+                executor, 2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        // when
+        validator.validateUris(Arrays.asList(URI.create("http://host-0.example/"), URI.create("http://host-1.example/")),
+                result -> {
+                    order.add(result.getHost().getHostName());
+                    firstResult.countDown();
+                }).get(20, TimeUnit.SECONDS);
+
+        // then
+        assertEquals(Arrays.asList("host-1.example", "host-0.example"), order);
+    }
+
+    @Test
+    public final void verifyConsumerFailureCompletesFuture() {
+        // given
+        final BulkValidator validator = new BulkValidator(new InternalAddressFilteringRequestInterceptor(countingResolver),
+                executor, 2);
+
+        // when
+        final boolean result = validator.validateUris(Collections.singletonList(URI.create("http://public.example/")),
+                item -> {
+                    throw new IllegalStateException("consumer failed");
+                }).handle((ignored, failure) -> failure instanceof IllegalStateException).join();
+
+        // then
+        assertTrue(result);
+        assertFalse(executor.isShutdown());
+    }
+
+    @Test
+    public final void verifyConsumerErrorCompletesFutureExceptionally() {
+        // given
+        final BulkValidator validator = new BulkValidator(new InternalAddressFilteringRequestInterceptor(countingResolver),
+                executor, 2);
+
+        // when
+        final Throwable result = validator.validateUris(Collections.singletonList(URI.create("http://public.example/")),
+                item -> {
+                    throw new AssertionError("consumer failed");
+                }).handle((ignored, failure) -> failure).join();
+
+        // then
+        assertTrue(result instanceof AssertionError);
+    }
+
+}
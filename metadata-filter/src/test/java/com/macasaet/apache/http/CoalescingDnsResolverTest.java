@@ -0,0 +1,201 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link CoalescingDnsResolver}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class CoalescingDnsResolverTest {
+
+    private static final int threads = 16;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger lookups = new AtomicInteger();
+    private InetAddress[] addresses;
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        addresses = new InetAddress[] { InetAddress.getByName("93.184.216.34") };
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public final void verifyConcurrentLookupsAreShared() throws Exception {
+        // given
+        final CoalescingDnsResolver resolver = new CoalescingDnsResolver(blockingResolver(() -> addresses));
+
+        // when
+        final List<Future<InetAddress[]>> results = resolveConcurrently(resolver);
+
+        // then
+        for (final Future<InetAddress[]> result : results) {
+            assertArrayEquals(addresses, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(1, resolver.getLookupCount());
+        assertEquals(threads - 1, resolver.getCoalescedCount());
+    }
+
+    @Test
+    public final void verifyFailureIsPropagatedToAllWaiters() throws Exception {
+        // given
+        final CoalescingDnsResolver resolver = new CoalescingDnsResolver(blockingResolver(() -> null));
+
+        // when
+        final List<Future<InetAddress[]>> results = resolveConcurrently(resolver);
+
+        // then
+        for (final Future<InetAddress[]> result : results) {
+            final ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> result.get(10, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof UnknownHostException);
+            assertEquals("popular.example", failure.getCause().getMessage());
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public final void verifyEachWaiterReceivesItsOwnException() throws Exception {
+        // given
+        final CoalescingDnsResolver resolver = new CoalescingDnsResolver(blockingResolver(() -> {
+            throw new IllegalStateException("resolver failure");
+        }));
+
+        // when
+        final List<Future<InetAddress[]>> results = resolveConcurrently(resolver);
+
+        // then
+        final Set<Throwable> failures = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final Future<InetAddress[]> result : results) {
+            final ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> result.get(10, TimeUnit.SECONDS));
+            failures.add(failure.getCause());
+        }
+        assertEquals(threads, failures.size());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public final void verifyErrorDoesNotStrandLaterLookups() throws Exception {
+        // given
+        final CoalescingDnsResolver resolver = new CoalescingDnsResolver(blockingResolver(() -> {
+            throw new ExceptionInInitializerError("resolver failure");
+        }));
+        final List<Future<InetAddress[]>> results = resolveConcurrently(resolver);
+        for (final Future<InetAddress[]> result : results) {
+            final ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> result.get(10, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof ExceptionInInitializerError
+                    || failure.getCause().getCause() instanceof ExceptionInInitializerError);
+        }
+
+        // when
+        final Future<InetAddress[]> result = executor.submit(() -> resolver.resolve("popular.example"));
+
+        // then
+        final ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> result.get(10, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof ExceptionInInitializerError);
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public final void verifyCompletedLookupsAreNotCached() throws UnknownHostException {
+        // given
+        final CoalescingDnsResolver resolver = new CoalescingDnsResolver(host -> {
+            lookups.incrementAndGet();
+            return addresses;
+        });
+
+        // when
+        final InetAddress[] first = resolver.resolve("popular.example");
+        final InetAddress[] second = resolver.resolve("POPULAR.example");
+
+        // then
+        assertEquals(2, lookups.get());
+        assertNotSame(first, second);
+        assertEquals(0, resolver.getCoalescedCount());
+    }
+
+    protected List<Future<InetAddress[]>> resolveConcurrently(final CoalescingDnsResolver resolver)
+            throws InterruptedException {
+        final List<Future<InetAddress[]>> retval = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            retval.add(executor.submit(() -> resolver.resolve("popular.example")));
+        }
+        // hold the lookup until every other thread is waiting for it
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (resolver.getCoalescedCount() < threads - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        return retval;
+    }
+
+    protected DnsResolver blockingResolver(final Supplier<InetAddress[]> source) {
+        return host -> {
+            lookups.incrementAndGet();
+            try {
+                release.await();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            final InetAddress[] retval = source.get();
+            if (retval == null) {
+                throw new UnknownHostException(host);
+            }
+            return retval;
+        };
+    }
+
+}
@@ -335,13 +335,16 @@ public class ConnectionBlockingTest {
             final Stream.Builder<Arguments> builder = Stream.builder();
             if(!osString.contains("nux")) {
                 // not Linux
-                // these will fail on Linux with `java.net.UnknownHostException`
-                builder.accept(Arguments.of("http://0251.0376.0251.0376/latest/meta-data/")); // Octal
-                builder.accept(Arguments.of("http://0xA9FEA9FE/latest/meta-data/")); // Hexadecimal
+                // this will fail on Linux with `java.net.UnknownHostException`
                 builder.accept(Arguments.of("http://0xDEADBEEFA9FEA9FE/latest/meta-data/")); // // Hexadecimal with additional digits
-                builder.accept(Arguments.of("http://0xA9.0376.0xA9.0376/latest/meta-data/")); // Hexadecimal and Octal
-                builder.accept(Arguments.of("http://0251.0xFE.0251.0xFE/latest/meta-data/")); // Octal and Hexadecimal
             }
+            // these are recognised without consulting the resolver
+            builder.accept(Arguments.of("http://0251.0376.0251.0376/latest/meta-data/")); // Octal
+            builder.accept(Arguments.of("http://0xA9FEA9FE/latest/meta-data/")); // Hexadecimal
+            builder.accept(Arguments.of("http://0xA9.0376.0xA9.0376/latest/meta-data/")); // Hexadecimal and Octal
+            builder.accept(Arguments.of("http://0251.0xFE.0251.0xFE/latest/meta-data/")); // Octal and Hexadecimal
+            builder.accept(Arguments.of("http://0251.254.43518/latest/meta-data/")); // Three parts
+            builder.accept(Arguments.of("http://[::ffff:169.254.169.254]/latest/meta-data/")); // IPv4-mapped IPv6
             builder.accept(Arguments.of("http://2852039166/latest/meta-data/")); // Decimal
             return builder.build();
         }
@@ -368,12 +371,8 @@ public class ConnectionBlockingTest {
     protected static class AuthenticationStringsProvider implements ArgumentsProvider {
         public Stream<? extends Arguments> provideArguments(final ExtensionContext ignored) {
             final Stream.Builder<Arguments> builder = Stream.builder();
-            if(!osString.contains("nux")) {
-                // not Linux
-                // these will fail on Linux with `java.net.UnknownHostException`
-                builder.accept(Arguments.of("http://www.iso.org@0251.0376.0251.0376/latest/meta-data/"));
-                builder.accept(Arguments.of("http://www.cisecurity.org@0xA9FEA9FE/latest/meta-data/"));
-            }
+            builder.accept(Arguments.of("http://www.iso.org@0251.0376.0251.0376/latest/meta-data/"));
+            builder.accept(Arguments.of("http://www.cisecurity.org@0xA9FEA9FE/latest/meta-data/"));
             builder.accept(Arguments.of("http://www.nist.gov@169.254.169.254/latest/meta-data/"));
             builder.accept(Arguments.of("http://www.owasp.org@instance-data/latest/meta-data/"));
             builder.accept(Arguments.of("http://www.sans.org@metadata.google.internal/computeMetadata/v1/instance/disks/0/"));
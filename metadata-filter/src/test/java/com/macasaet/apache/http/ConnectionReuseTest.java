@@ -0,0 +1,205 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.InMemoryDnsResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for
+ * {@link InternalAddressFilteringRequestInterceptor#wrap(org.apache.http.conn.HttpClientConnectionManager)}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class ConnectionReuseTest {
+
+    // the test server listens on the loopback interface, so it must be exempted
+    private final FilterPolicy permissivePolicy = new FilterPolicy(
+            HostNameTrie.custom().addAll(FilterPolicy.defaultBlockedHosts).build(),
+            AddressRangeTrie.custom().allow("127.0.0.1").build());
+    private final AtomicReference<FilterPolicy> policy = new AtomicReference<>(permissivePolicy);
+    private final AtomicInteger filterLookups = new AtomicInteger();
+    private final AtomicInteger connectionLookups = new AtomicInteger();
+    private final AtomicInteger requestsServed = new AtomicInteger();
+    private final InMemoryDnsResolver filterHosts = new InMemoryDnsResolver();
+    private final InMemoryDnsResolver connectionHosts = new InMemoryDnsResolver();
+
+    private HttpServer server;
+    private CloseableHttpClient client;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", exchange -> {
+            requestsServed.incrementAndGet();
+            final byte[] body = "ok".getBytes(UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        });
+        server.start();
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        filterHosts.add("local.example", loopback);
+        connectionHosts.add("local.example", loopback);
+        filterHosts.add("metadata.example", InetAddress.getByName("169.254.169.254"));
+        connectionHosts.add("metadata.example", InetAddress.getByName("169.254.169.254"));
+
+        final DnsResolver countingResolver = host -> {
+            filterLookups.incrementAndGet();
+            return filterHosts.resolve(host);
+        };
+        final InternalAddressFilteringRequestInterceptor filter = InternalAddressFilteringRequestInterceptor.custom()
+                .setDnsResolver(countingResolver).setPolicy(policy::get).build();
+        final DnsResolver countingConnectionResolver = host -> {
+            connectionLookups.incrementAndGet();
+            return connectionHosts.resolve(host);
+        };
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory()).build(),
+                null, countingConnectionResolver);
+        client = HttpClientBuilder.create().setConnectionManager(filter.wrap(connectionManager)).build();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public final void verifyReusedConnectionIsNotCheckedAgain() throws IOException {
+        // given
+        final int requests = 10;
+
+        // when
+        for (int i = 0; i < requests; i++) {
+            get("http://local.example:" + server.getAddress().getPort() + "/");
+        }
+
+        // then
+        assertEquals(requests, requestsServed.get());
+        assertEquals(1, filterLookups.get());
+    }
+
+    @Test
+    public final void verifyNewConnectionIsResolvedOnce() throws IOException {
+        // when
+        get("http://local.example:" + server.getAddress().getPort() + "/");
+
+        // then
+        // the connection manager is given the checked address, so it does not resolve the host again
+        assertEquals(1, filterLookups.get());
+        assertEquals(0, connectionLookups.get());
+    }
+
+    @Test
+    public final void verifyNewConnectionToBlockedAddressIsRefused() {
+        // when
+        final UnknownHostException result = assertThrows(UnknownHostException.class,
+                () -> get("http://metadata.example/latest/meta-data/"));
+
+        // then
+        assertEquals("Blocked host.", result.getMessage());
+    }
+
+    @Test
+    public final void verifyOnlyCheckedAddressIsConnected() throws IOException {
+        // given
+        // the connection manager would connect to an unreachable address
+        filterHosts.add("rebinding.example", InetAddress.getByName("127.0.0.1"));
+        connectionHosts.add("rebinding.example", InetAddress.getByName("192.0.2.1"));
+
+        // when
+        get("http://rebinding.example:" + server.getAddress().getPort() + "/");
+
+        // then
+        assertEquals(1, requestsServed.get());
+    }
+
+    @Test
+    public final void verifyBlockedAddressIsNotContacted() throws IOException {
+        try (ServerSocket internal = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            // given
+            filterHosts.add("internal.example", InetAddress.getByName("127.0.0.1"));
+            connectionHosts.add("internal.example", InetAddress.getByName("127.0.0.1"));
+            policy.set(FilterPolicy.defaultPolicy());
+
+            // when
+            assertThrows(UnknownHostException.class,
+                    () -> get("http://internal.example:" + internal.getLocalPort() + "/"));
+
+            // then
+            internal.setSoTimeout(200);
+            assertThrows(SocketTimeoutException.class, internal::accept);
+        }
+    }
+
+    @Test
+    public final void verifyReusedConnectionIsCheckedAgainstNewPolicy() throws IOException {
+        // given
+        final String url = "http://local.example:" + server.getAddress().getPort() + "/";
+        get(url);
+
+        // when
+        policy.set(FilterPolicy.defaultPolicy());
+
+        // then
+        assertThrows(UnknownHostException.class, () -> get(url));
+        assertEquals(1, requestsServed.get());
+        policy.set(permissivePolicy);
+        get(url);
+        assertEquals(2, requestsServed.get());
+    }
+
+    protected void get(final String url) throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+}
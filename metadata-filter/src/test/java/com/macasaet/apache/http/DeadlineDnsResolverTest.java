@@ -0,0 +1,241 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link DeadlineDnsResolver}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class DeadlineDnsResolverTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // released at the end of each test so that stuck lookups finish
+    private final CountDownLatch blackHole = new CountDownLatch(1);
+    private final AtomicInteger attempts = new AtomicInteger();
+    private InetAddress[] addresses;
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        addresses = new InetAddress[] { InetAddress.getByName("93.184.216.34") };
+    }
+
+    @AfterEach
+    public void tearDown() {
+        blackHole.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public final void verifyFastLookupSucceeds() throws UnknownHostException {
+        // given
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(host -> addresses)
+                .setExecutor(executor).setTimeout(1, TimeUnit.SECONDS).build();
+
+        // when
+        final InetAddress[] result = resolver.resolve("public.example");
+
+        // then
+        assertArrayEquals(addresses, result);
+    }
+
+    @Test
+    public final void verifySlowLookupFailsClosed() {
+        // given
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(this::hang)
+                .setExecutor(executor).setTimeout(100, TimeUnit.MILLISECONDS).build();
+        final long start = System.nanoTime();
+
+        // when
+        final UnknownHostException result = assertThrows(UnknownHostException.class,
+                () -> resolver.resolve("slow.example"));
+
+        // then
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis >= 100 && elapsedMillis < 2_000, "elapsed: " + elapsedMillis);
+        assertEquals("Timed out resolving: slow.example", result.getMessage());
+    }
+
+    @Test
+    public final void verifyFailureIsPropagatedWithoutWaiting() {
+        // given
+        final UnknownHostException failure = new UnknownHostException("unknown.example");
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(host -> {
+            throw failure;
+        }).setExecutor(executor).setTimeout(10, TimeUnit.SECONDS).build();
+
+        // when
+        final UnknownHostException result = assertThrows(UnknownHostException.class,
+                () -> resolver.resolve("unknown.example"));
+
+        // then
+        assertSame(failure, result);
+    }
+
+    @Test
+    public final void verifyHedgedAttemptWins() throws UnknownHostException {
+        // given
+        final DnsResolver firstAttemptHangs = host -> attempts.incrementAndGet() == 1 ? hang(host) : addresses;
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(firstAttemptHangs)
+                .setExecutor(executor).setTimeout(5, TimeUnit.SECONDS).setHedgeDelay(50, TimeUnit.MILLISECONDS)
+                .build();
+
+        // when
+        final InetAddress[] result = resolver.resolve("flaky.example");
+
+        // then
+        assertArrayEquals(addresses, result);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public final void verifyLosingFirstAttemptIsRecorded() throws UnknownHostException, InterruptedException {
+        // given
+        final CountDownLatch firstAttemptReleased = new CountDownLatch(1);
+        final DnsResolver firstAttemptIsSlow = host -> {
+            if (attempts.incrementAndGet() == 1) {
+                try {
+                    firstAttemptReleased.await();
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return addresses;
+        };
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(firstAttemptIsSlow)
+                .setExecutor(executor).setTimeout(5, TimeUnit.SECONDS).setHedgeDelay(50, TimeUnit.MILLISECONDS)
+                .build();
+        resolver.resolve("slow.example");
+
+        // when
+        firstAttemptReleased.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // then
+        assertEquals(2, resolver.getLatency().getCount());
+        // the hedged attempt is timed from the start of the first
+        assertTrue(resolver.getLatency().getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public final void verifyFastLookupIsNotHedged() throws UnknownHostException {
+        // given
+        final DnsResolver countingResolver = host -> {
+            attempts.incrementAndGet();
+            return addresses;
+        };
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(countingResolver)
+                .setExecutor(executor).setTimeout(5, TimeUnit.SECONDS).setHedgeDelay(1, TimeUnit.SECONDS).build();
+
+        // when
+        resolver.resolve("public.example");
+
+        // then
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public final void verifyHedgeDelayAdaptsToObservedLatency() throws UnknownHostException, InterruptedException {
+        // given
+        final DnsResolver countingResolver = host -> {
+            attempts.incrementAndGet();
+            return addresses;
+        };
+        final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(countingResolver)
+                .setExecutor(executor).setTimeout(5, TimeUnit.SECONDS).setHedgeDelay(0, TimeUnit.MILLISECONDS)
+                .setHedgePercentile(95).build();
+
+        // when
+        for (int i = 0; i < 128; i++) {
+            resolver.resolve("public.example");
+        }
+
+        // let any losing attempts finish
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // then
+        // every winner is recorded, as is every first attempt that lost to a hedged one
+        final long count = resolver.getLatency().getCount();
+        assertTrue(count >= 128 && count <= attempts.get(), "count: " + count);
+        final long delay = resolver.getHedgeDelay(TimeUnit.NANOSECONDS);
+        assertTrue(delay > 0 && delay <= resolver.getLatency().getMax(), "delay: " + delay);
+    }
+
+    @Test
+    public final void verifySaturatedExecutorFailsClosed() throws InterruptedException {
+        // given
+        final ThreadPoolExecutor singleThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>());
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            singleThread.execute(() -> {
+                started.countDown();
+                try {
+                    blackHole.await();
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            started.await();
+            final DeadlineDnsResolver resolver = DeadlineDnsResolver.custom().setDelegate(host -> addresses)
+                    .setExecutor(singleThread).setTimeout(10, TimeUnit.SECONDS).build();
+
+            // when
+            final UnknownHostException result = assertThrows(UnknownHostException.class,
+                    () -> resolver.resolve("public.example"));
+
+            // then
+            assertEquals("Too many concurrent lookups: public.example", result.getMessage());
+        } finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    protected InetAddress[] hang(final String host) throws UnknownHostException {
+        try {
+            blackHole.await();
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        throw new UnknownHostException(host);
+    }
+
+}
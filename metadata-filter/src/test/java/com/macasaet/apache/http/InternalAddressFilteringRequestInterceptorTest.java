@@ -0,0 +1,171 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests for {@link InternalAddressFilteringRequestInterceptor}, including
+ * its <code>Host</code> header handling.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class InternalAddressFilteringRequestInterceptorTest {
+
+    private final InternalAddressFilteringRequestInterceptor interceptor = new InternalAddressFilteringRequestInterceptor(
+            FilterEngine.custom().setResolver(host -> {
+                throw new AssertionError("Literal was resolved: " + host);
+            }).setAddressRanges(AddressRangeTrie.custom().block("fd00:ec2::254").build()).build());
+
+    @ParameterizedTest
+    @CsvSource({
+            "example.com, example.com, -1",
+            "example.com., example.com, -1",
+            "example.com:8080, example.com, 8080",
+            "example.com:, example.com, -1",
+            "example.com.:8080, example.com, 8080",
+            "169.254.169.254:80, 169.254.169.254, 80",
+            "[fd00:ec2::254], fd00:ec2::254, -1",
+            "[fd00:ec2::254]:80, fd00:ec2::254, 80",
+            "'[::ffff:169.254.169.254]:65535', ::ffff:169.254.169.254, 65535",
+            "fd00:ec2::254, fd00:ec2::254, -1",
+    })
+    public final void verifyHostHeaderIsParsed(final String value, final String expectedName,
+            final int expectedPort) {
+        // when
+        final HttpHost result = interceptor.parseHost(value);
+
+        // then
+        assertEquals(expectedName, result.getHostName());
+        assertEquals(expectedPort, result.getPort());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            ".",
+            ":80",
+            "[]",
+            "[fd00:ec2::254",
+            "[fd00:ec2::254]80",
+            "example.com:http",
+            "example.com:65536",
+            "example.com:000080",
+    })
+    public final void verifyInvalidHostHeaderIsRejected(final String value) {
+        assertNull(interceptor.parseHost(value));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "[fd00:ec2::254]:80",
+            "[FD00:EC2:0:0:0:0:0:254]",
+            "169.254.169.254",
+            "0xA9FEA9FE:80",
+            "metadata.google.internal.:80",
+    })
+    public final void verifyRequestWithOnlyHostHeaderIsBlocked(final String value) {
+        // given
+        final BasicHttpRequest request = new BasicHttpRequest("GET", "/latest/meta-data/");
+        request.addHeader("Host", value);
+
+        // when / then
+        final HttpException result = assertThrows(HttpException.class,
+                () -> interceptor.process(request, new BasicHttpContext()));
+        assertEquals("Blocked host.", result.getMessage());
+    }
+
+    @Test
+    public final void verifyRequestWithInvalidHostHeaderIsRejected() {
+        // given
+        final BasicHttpRequest request = new BasicHttpRequest("GET", "/latest/meta-data/");
+        request.addHeader("Host", "[fd00:ec2::254");
+
+        // when / then
+        final HttpException result = assertThrows(HttpException.class,
+                () -> interceptor.process(request, new BasicHttpContext()));
+        assertEquals("No host specified", result.getMessage());
+    }
+
+    @Test
+    public final void verifyRepeatRequestsAreNotResolved() throws Exception {
+        // given
+        final AtomicInteger lookups = new AtomicInteger();
+        final DnsResolver resolver = host -> {
+            lookups.incrementAndGet();
+            return new InetAddress[] {
+                    InetAddress.getByName("host.example".equals(host) ? "93.184.216.34" : "10.0.0.1") };
+        };
+        final InternalAddressFilteringRequestInterceptor cachingInterceptor = InternalAddressFilteringRequestInterceptor
+                .custom().setDnsResolver(resolver).setVerdictCache(new VerdictCache(16, 1, 1, TimeUnit.HOURS)).build();
+        final HttpContext publicContext = new BasicHttpContext();
+        publicContext.setAttribute(HTTP_TARGET_HOST, new HttpHost("host.example"));
+        final HttpContext internalContext = new BasicHttpContext();
+        internalContext.setAttribute(HTTP_TARGET_HOST, new HttpHost("internal.example"));
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            cachingInterceptor.process(new HttpGet("/"), publicContext);
+            assertThrows(HttpException.class, () -> cachingInterceptor.process(new HttpGet("/"), internalContext));
+        }
+
+        // then
+        assertEquals(2, lookups.get());
+        assertEquals(14, cachingInterceptor.getVerdictCache().getHitCount());
+    }
+
+    @Test
+    public final void verifyInterceptorAppliesRanges() throws Exception {
+        // given
+        final InternalAddressFilteringRequestInterceptor rangeInterceptor = InternalAddressFilteringRequestInterceptor
+                .custom()
+                .setAddressRanges(AddressRangeTrie.custom().block("100.64.0.0/10").allow("10.1.0.0/16").build())
+                .build();
+        final HttpContext sharedAddressContext = new BasicHttpContext();
+        sharedAddressContext.setAttribute(HTTP_TARGET_HOST, new HttpHost("100.100.100.200"));
+        final HttpContext blockedContext = new BasicHttpContext();
+        blockedContext.setAttribute(HTTP_TARGET_HOST, new HttpHost("10.2.0.1"));
+        final HttpContext allowedContext = new BasicHttpContext();
+        allowedContext.setAttribute(HTTP_TARGET_HOST, new HttpHost("10.1.0.1"));
+
+        // when / then
+        assertThrows(HttpException.class, () -> rangeInterceptor.process(new HttpGet("/"), sharedAddressContext));
+        assertThrows(HttpException.class, () -> rangeInterceptor.process(new HttpGet("/"), blockedContext));
+        rangeInterceptor.process(new HttpGet("/"), allowedContext);
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the proxy-aware mode of
+ * {@link InternalAddressFilteringRequestInterceptor}, in which targets
+ * reached through a forward proxy are not resolved locally.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class ProxyPolicyTest {
+
+    private final List<String> lookups = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> decisions = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicReference<String> proxiedUri = new AtomicReference<>();
+
+    // a stand-in for a proxy on a network without external DNS
+    private HttpServer proxy;
+    private HttpHost proxyHost;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        proxy = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        proxy.createContext("/", exchange -> {
+            proxiedUri.set(exchange.getRequestURI().toString());
+            final byte[] body = "ok".getBytes(UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        });
+        proxy.start();
+        proxyHost = new HttpHost("127.0.0.1", proxy.getAddress().getPort());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        proxy.stop(0);
+    }
+
+    @Test
+    public final void verifyProxiedTargetIsNotResolved() throws IOException {
+        // given
+        final InternalAddressFilteringRequestInterceptor filter = filter(ProxyPolicy.trustProxy);
+
+        // when
+        try (CloseableHttpClient client = install(filter)) {
+            get(client, "http://partner.example/api");
+        }
+
+        // then
+        assertEquals("http://partner.example/api", proxiedUri.get());
+        assertEquals(Collections.emptyList(), lookups);
+        assertEquals(Collections.singletonList("partner.example ALLOWED"), decisions);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "http://metadata.google.internal/computeMetadata/v1/",
+            "http://169.254.169.254/latest/meta-data/",
+            "http://0xA9FEA9FE/latest/meta-data/",
+            "http://[fd00:ec2::254]/latest/meta-data/",
+            "http://100.100.100.200/latest/meta-data/",
+    })
+    public final void verifyNameAndLiteralRulesApplyToProxiedTargets(final String url) throws IOException {
+        // given
+        final InternalAddressFilteringRequestInterceptor filter = filter(ProxyPolicy.trustProxy);
+
+        // when
+        try (CloseableHttpClient client = install(filter)) {
+            final ClientProtocolException result = assertThrows(ClientProtocolException.class,
+                    () -> get(client, url));
+
+            // then
+            assertEquals("Blocked host.", result.getCause().getMessage());
+        }
+        assertEquals(null, proxiedUri.get());
+        assertEquals(Collections.emptyList(), lookups);
+    }
+
+    @Test
+    public final void verifyProxyPolicyDecidesUndecidedTargets() throws IOException {
+        // given
+        final List<String> checked = new ArrayList<>();
+        final InternalAddressFilteringRequestInterceptor filter = filter((target, proxy) -> {
+            checked.add(target.getHostName() + " via " + proxy.toHostString());
+            return "internal.example".equals(target.getHostName()) ? Verdict.BLOCKED_BY_ADDRESS : Verdict.ALLOWED;
+        });
+
+        // when
+        try (CloseableHttpClient client = install(filter)) {
+            get(client, "http://partner.example/");
+            assertThrows(ClientProtocolException.class, () -> get(client, "http://internal.example/"));
+            assertThrows(ClientProtocolException.class, () -> get(client, "http://instance-data/"));
+        }
+
+        // then
+        assertEquals(2, checked.size());
+        assertEquals("partner.example via " + proxyHost.toHostString(), checked.get(0));
+        assertEquals("internal.example via " + proxyHost.toHostString(), checked.get(1));
+        assertEquals(Collections.emptyList(), lookups);
+    }
+
+    @Test
+    public final void verifyProxiedTargetIsResolvedWithoutProxyPolicy() throws IOException {
+        // given
+        final InternalAddressFilteringRequestInterceptor filter = filter(null);
+
+        // when
+        try (CloseableHttpClient client = install(filter)) {
+            assertThrows(UnknownHostException.class, () -> get(client, "http://partner.example/"));
+        }
+
+        // then
+        assertEquals(Collections.singletonList("partner.example"), lookups);
+        assertEquals(null, proxiedUri.get());
+    }
+
+    @Test
+    public final void verifyWrappedConnectionManagerDoesNotResolveProxiedTarget() throws IOException {
+        // given
+        final InternalAddressFilteringRequestInterceptor filter = filter(ProxyPolicy.trustProxy);
+
+        // when
+        try (CloseableHttpClient client = HttpClientBuilder.create().setProxy(proxyHost)
+                .setConnectionManager(filter.wrap(new PoolingHttpClientConnectionManager())).build()) {
+            get(client, "http://partner.example/api");
+            final UnknownHostException result = assertThrows(UnknownHostException.class,
+                    () -> get(client, "http://metadata.google.internal/"));
+            assertEquals("Blocked host.", result.getMessage());
+        }
+
+        // then
+        assertEquals("http://partner.example/api", proxiedUri.get());
+        assertEquals(Collections.emptyList(), lookups);
+    }
+
+    @Test
+    public final void verifyInstallWithResolverDoesNotResolveProxiedTarget() throws IOException {
+        // given
+        final InternalAddressFilteringRequestInterceptor filter = filter(ProxyPolicy.trustProxy);
+        final HttpClientBuilder builder = HttpClientBuilder.create().setProxy(proxyHost);
+        filter.installWithResolver(builder);
+
+        // when
+        try (CloseableHttpClient client = builder.build()) {
+            get(client, "http://partner.example/api");
+            assertThrows(ClientProtocolException.class, () -> get(client, "http://169.254.169.254/"));
+        }
+
+        // then
+        assertEquals("http://partner.example/api", proxiedUri.get());
+        // only the proxy's own address is looked up, by the connection manager
+        assertTrue(lookups.stream().allMatch("127.0.0.1"::equals), lookups.toString());
+    }
+
+    @Test
+    public final void verifyInstallWithResolverChecksProxiedTargetWithoutProxyPolicy() throws IOException {
+        // given
+        final InternalAddressFilteringRequestInterceptor filter = InternalAddressFilteringRequestInterceptor.custom()
+                .setDnsResolver(host -> {
+                    lookups.add(host);
+                    switch (host) {
+                    case "proxy.internal":
+                        return new InetAddress[] { InetAddress.getByName("127.0.0.1") };
+                    case "partner.example":
+                        return new InetAddress[] { InetAddress.getByName("93.184.216.34") };
+                    case "internal.example":
+                        return new InetAddress[] { InetAddress.getByName("10.0.0.1") };
+                    default:
+                        throw new UnknownHostException(host);
+                    }
+                })
+                .build();
+        final HttpClientBuilder builder = HttpClientBuilder.create()
+                .setProxy(new HttpHost("proxy.internal", proxyHost.getPort()));
+        filter.installWithResolver(builder);
+
+        // when
+        try (CloseableHttpClient client = builder.build()) {
+            // the proxy's loopback address is not filtered
+            get(client, "http://partner.example/api");
+            assertThrows(ClientProtocolException.class, () -> get(client, "http://internal.example/"));
+        }
+
+        // then
+        assertEquals("http://partner.example/api", proxiedUri.get());
+        assertTrue(lookups.contains("internal.example"), lookups.toString());
+    }
+
+    protected InternalAddressFilteringRequestInterceptor filter(final ProxyPolicy proxyPolicy) {
+        return InternalAddressFilteringRequestInterceptor.custom()
+                .setDnsResolver(host -> {
+                    lookups.add(host);
+                    if ("127.0.0.1".equals(host)) {
+                        return new InetAddress[] { InetAddress.getByName(host) };
+                    }
+                    throw new UnknownHostException(host);
+                })
+                // the stand-in proxy listens on the loopback interface
+                .setTrustedHosts(HostNameSet.custom().add("127.0.0.1").build())
+                .addListener((hostName, verdict, elapsedNanos) -> decisions.add(hostName + " " + verdict))
+                .setProxyPolicy(proxyPolicy)
+                .build();
+    }
+
+    protected CloseableHttpClient install(final InternalAddressFilteringRequestInterceptor filter) {
+        final HttpClientBuilder builder = HttpClientBuilder.create().setProxy(proxyHost);
+        filter.install(builder);
+        return builder.build();
+    }
+
+    protected void get(final CloseableHttpClient client, final String url) throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            EntityUtils.consume(response.getEntity());
+            assertEquals(200, response.getStatusLine().getStatusCode());
+        }
+    }
+
+}
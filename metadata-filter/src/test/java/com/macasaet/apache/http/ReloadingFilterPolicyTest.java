@@ -0,0 +1,237 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.apache.http.protocol.HttpCoreContext.HTTP_TARGET_HOST;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ReloadingFilterPolicy} and the {@link FilterPolicy}
+ * file format.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class ReloadingFilterPolicyTest {
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private long modified = 1_000_000L;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = directory.resolve("filter.properties");
+        write("blocked.hosts = *.corp, tenant-42.example.com\n"
+                + "blocked.addresses = 100.64.0.0/10\n"
+                + "allowed.addresses = 10.1.0.0/16\n");
+    }
+
+    @Test
+    public final void verifyFileIsParsed() throws IOException {
+        // given
+        final FilterPolicy policy = FilterPolicy.load(file);
+
+        // when / then
+        assertTrue(policy.isBlockedHostName("payroll.corp"));
+        assertTrue(policy.isBlockedHostName("metadata.google.internal"));
+        assertTrue(policy.isBlockedAddress(InetAddress.getByName("100.100.100.200")));
+        assertTrue(policy.isBlockedAddress(InetAddress.getByName("10.2.0.1")));
+        assertFalse(policy.isBlockedAddress(InetAddress.getByName("10.1.0.1")));
+    }
+
+    @Test
+    public final void verifyChangesArePublished() throws IOException, HttpException {
+        try (ReloadingFilterPolicy source = new ReloadingFilterPolicy(file, 1, TimeUnit.DAYS)) {
+            // given
+            final InternalAddressFilteringRequestInterceptor interceptor = InternalAddressFilteringRequestInterceptor
+                    .custom().setPolicy(source).build();
+            final HttpContext context = new BasicHttpContext();
+            context.setAttribute(HTTP_TARGET_HOST, new HttpHost("10.1.0.1"));
+            final FilterPolicy original = source.get();
+            interceptor.process(new HttpGet("/"), context);
+            assertFalse(source.poll());
+
+            // when
+            write("default.blocked.hosts = false\nblocked.addresses = 10.1.0.1\n");
+
+            // then
+            assertTrue(source.poll());
+            assertNull(source.getLastError());
+            assertNotSame(original, source.get());
+            assertFalse(source.get().isBlockedHostName("instance-data"));
+            assertThrows(HttpException.class, () -> interceptor.process(new HttpGet("/"), context));
+        }
+    }
+
+    @Test
+    public final void verifyInvalidFileRetainsPreviousPolicy() throws IOException {
+        try (ReloadingFilterPolicy source = new ReloadingFilterPolicy(file, 1, TimeUnit.DAYS)) {
+            // given
+            final FilterPolicy original = source.get();
+
+            // when
+            write("blocked.addresses = 100.64.0.0/33\n");
+
+            // then
+            assertFalse(source.poll());
+            assertSame(original, source.get());
+            assertNotNull(source.getLastError());
+
+            // when
+            write("blocked.hostz = typo.example\n");
+
+            // then
+            assertFalse(source.poll());
+            assertSame(original, source.get());
+
+            // when
+            Files.delete(file);
+
+            // then
+            assertFalse(source.poll());
+            assertSame(original, source.get());
+        }
+    }
+
+    @Test
+    public final void verifyFileBeingWrittenIsNotPublished() throws IOException {
+        // given
+        final AtomicInteger written = new AtomicInteger(-1);
+        try (ReloadingFilterPolicy source = new ReloadingFilterPolicy(file, 1, TimeUnit.DAYS) {
+            protected byte[] readContents() throws IOException {
+                final byte[] contents = super.readContents();
+                // simulate a writer that is still appending to the file
+                return written.get() < 0 ? contents
+                        : Arrays.copyOf(contents, Math.min(contents.length, written.getAndAdd(8)));
+            }
+        }) {
+            final FilterPolicy original = source.get();
+            written.set(8);
+
+            // when
+            write("default.blocked.hosts = false\nblocked.addresses = 10.1.0.1\n");
+
+            // then
+            assertFalse(source.poll());
+            assertSame(original, source.get());
+            assertNotNull(source.getLastError());
+
+            // when
+            written.set(-1);
+            write("default.blocked.hosts = false\nblocked.addresses = 10.1.0.1\n");
+
+            // then
+            assertTrue(source.poll());
+            assertNull(source.getLastError());
+            assertTrue(source.get().isBlockedAddress(InetAddress.getByName("10.1.0.1")));
+        }
+    }
+
+    @Test
+    public final void verifyIncompleteReadIsRetried() throws IOException {
+        // given
+        final AtomicInteger reads = new AtomicInteger(-1);
+        try (ReloadingFilterPolicy source = new ReloadingFilterPolicy(file, 1, TimeUnit.DAYS) {
+            protected byte[] readContents() throws IOException {
+                final byte[] contents = super.readContents();
+                // consecutive reads never agree while the writer is active
+                return reads.get() < 0 ? contents : Arrays.copyOf(contents, contents.length + reads.incrementAndGet());
+            }
+        }) {
+            final FilterPolicy original = source.get();
+            reads.set(0);
+            write("default.blocked.hosts = false\nblocked.addresses = 10.1.0.1\n");
+            assertFalse(source.poll());
+            assertSame(original, source.get());
+            assertNotNull(source.getLastError());
+
+            // when
+            // the writer finishes without touching the file again
+            reads.set(-1);
+
+            // then
+            assertTrue(source.poll());
+            assertNull(source.getLastError());
+            assertTrue(source.get().isBlockedAddress(InetAddress.getByName("10.1.0.1")));
+            assertFalse(source.poll());
+        }
+    }
+
+    @Test
+    public final void verifyReplacedFileIsPublished() throws IOException {
+        try (ReloadingFilterPolicy source = new ReloadingFilterPolicy(file, 1, TimeUnit.DAYS)) {
+            // given
+            final Path replacement = directory.resolve("filter.properties.new");
+            Files.write(replacement, "blocked.hosts = *.corp, tenant-24.example.com\n".getBytes(ISO_8859_1));
+            write("blocked.hosts = *.corp, tenant-42.example.com\n");
+            Files.setLastModifiedTime(replacement, Files.getLastModifiedTime(file));
+            assertTrue(source.poll());
+
+            // when
+            // the replacement has the same size and modification time as the file it replaces
+            Files.move(replacement, file, StandardCopyOption.ATOMIC_MOVE);
+
+            // then
+            assertTrue(source.poll());
+            assertTrue(source.get().isBlockedHostName("tenant-24.example.com"));
+        }
+    }
+
+    @Test
+    public final void verifyInvalidInitialFileIsRejected() throws IOException {
+        // given
+        write("default.blocked.hosts = maybe\n");
+
+        // when / then
+        assertThrows(IllegalArgumentException.class, () -> new ReloadingFilterPolicy(file, 1, TimeUnit.DAYS));
+    }
+
+    protected void write(final String contents) throws IOException {
+        Files.write(file, contents.getBytes(ISO_8859_1));
+        // avoid depending on the file system's timestamp resolution
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified += 1000));
+    }
+
+}
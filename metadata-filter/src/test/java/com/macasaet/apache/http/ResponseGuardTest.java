@@ -0,0 +1,399 @@
+/*
+   Copyright 2019 Carlos Macasaet
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       https://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and 
+   limitations under the License.
+ */
+package com.macasaet.apache.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for {@link ResponseGuard}.
+ *
+ * <p>Copyright &copy; 2019 Carlos Macasaet.</p>
+ *
+ * @author Carlos Macasaet
+ */
+public class ResponseGuardTest {
+
+    // larger than the socket buffers, so the server notices when the client stops reading
+    private static final int largeBodyLength = 64 * 1024 * 1024;
+
+    private static byte[] compressedBody;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final CountDownLatch responseFinished = new CountDownLatch(1);
+    private HttpServer server;
+    private String baseUri;
+
+    @BeforeAll
+    public static void setUpClass() throws IOException {
+        compressedBody = compress(new byte[largeBodyLength]);
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/image", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, 1024);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(new byte[1024]);
+            }
+        });
+        server.createContext("/moved", exchange -> {
+            final byte[] body = "<a href=\"/image\">Found</a>".getBytes(UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.getResponseHeaders().add("Location", "/image");
+            exchange.sendResponseHeaders(302, body.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        });
+        server.createContext("/moved-large", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.getResponseHeaders().add("Location", "/image");
+            exchange.sendResponseHeaders(302, 0);
+            writeLargeBody(exchange.getResponseBody());
+        });
+        server.createContext("/page", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, largeBodyLength);
+            writeLargeBody(exchange.getResponseBody());
+        });
+        server.createContext("/download", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, largeBodyLength);
+            writeLargeBody(exchange.getResponseBody());
+        });
+        server.createContext("/stream", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            // chunked, so the length is unknown until the body has been read
+            exchange.sendResponseHeaders(200, 0);
+            writeLargeBody(exchange.getResponseBody());
+        });
+        server.createContext("/compressed", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, compressedBody.length);
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(compressedBody);
+            }
+        });
+        server.start();
+        baseUri = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public final void verifyPermittedResponseIsReturned() throws IOException {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("image/*")
+                .setMaxContentLength(4096).build();
+
+        // when
+        try (CloseableHttpClient client = install(guard);
+                CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/image"))) {
+            final byte[] result = EntityUtils.toByteArray(response.getEntity());
+
+            // then
+            assertEquals(1024, result.length);
+        }
+    }
+
+    @Test
+    public final void verifyFollowedRedirectIsExemptFromContentTypes() throws IOException {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("image/png")
+                .setMaxContentLength(4096).build();
+
+        // when
+        try (CloseableHttpClient client = install(guard);
+                CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/moved"))) {
+            final byte[] result = EntityUtils.toByteArray(response.getEntity());
+
+            // then
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals(1024, result.length);
+        }
+    }
+
+    @Test
+    public final void verifyUnfollowedRedirectIsSubjectToContentTypes() throws IOException {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("image/png").build();
+        final HttpGet request = new HttpGet(baseUri + "/moved");
+        request.setConfig(RequestConfig.custom().setRedirectsEnabled(false).build());
+
+        // when
+        try (CloseableHttpClient client = install(guard)) {
+            final ClientProtocolException result = assertThrows(ClientProtocolException.class,
+                    () -> client.execute(request));
+
+            // then
+            assertEquals("Unexpected content type: text/html", result.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public final void verifyFollowedRedirectIsNotDrainedPastLimit() throws Exception {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("image/png")
+                .setMaxContentLength(1024 * 1024).build();
+
+        // when
+        try (CloseableHttpClient client = install(guard);
+                CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/moved-large"))) {
+
+            // then
+            assertEquals(1024, EntityUtils.toByteArray(response.getEntity()).length);
+        }
+        assertTrue(responseFinished.await(10, SECONDS));
+        assertTrue(bytesWritten.get() < largeBodyLength);
+    }
+
+    @Test
+    public final void verifyUnexpectedContentTypeIsRejectedWithoutReadingBody() throws Exception {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("image/png", "image/jpeg")
+                .build();
+
+        // when
+        try (CloseableHttpClient client = install(guard)) {
+            final ClientProtocolException result = assertThrows(ClientProtocolException.class,
+                    () -> client.execute(new HttpGet(baseUri + "/page")));
+
+            // then
+            assertEquals("Unexpected content type: text/html", result.getCause().getMessage());
+        }
+        assertTrue(responseFinished.await(10, SECONDS));
+        assertTrue(bytesWritten.get() < largeBodyLength);
+    }
+
+    @Test
+    public final void verifyDeclaredLengthOverLimitIsRejectedWithoutReadingBody() throws Exception {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setMaxContentLength(1024 * 1024).build();
+
+        // when
+        try (CloseableHttpClient client = install(guard)) {
+            final ClientProtocolException result = assertThrows(ClientProtocolException.class,
+                    () -> client.execute(new HttpGet(baseUri + "/download")));
+
+            // then
+            assertEquals("Response body too large: " + largeBodyLength, result.getCause().getMessage());
+        }
+        assertTrue(responseFinished.await(10, SECONDS));
+        assertTrue(bytesWritten.get() < largeBodyLength);
+    }
+
+    @Test
+    public final void verifyStreamedBodyIsAbortedAtLimit() throws Exception {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setMaxContentLength(1024 * 1024).build();
+
+        try (CloseableHttpClient client = install(guard)) {
+            // when
+            try (CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/stream"))) {
+                final IOException result = assertThrows(IOException.class,
+                        () -> EntityUtils.toByteArray(response.getEntity()));
+
+                // then
+                assertEquals("Response body exceeds 1048576 bytes", result.getMessage());
+            }
+            assertTrue(responseFinished.await(10, SECONDS));
+            assertTrue(bytesWritten.get() < largeBodyLength);
+
+            // the aborted connection is not returned to the pool
+            try (CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/image"))) {
+                assertEquals(1024, EntityUtils.toByteArray(response.getEntity()).length);
+            }
+        }
+    }
+
+    @Test
+    public final void verifyClosingBodyEarlyDoesNotDrainPastLimit() throws Exception {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setMaxContentLength(1024 * 1024).build();
+
+        // when
+        try (CloseableHttpClient client = install(guard);
+                CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/stream"))) {
+            try (InputStream stream = response.getEntity().getContent()) {
+                stream.read(new byte[16]);
+            }
+        }
+
+        // then
+        assertTrue(responseFinished.await(10, SECONDS));
+        assertTrue(bytesWritten.get() < largeBodyLength);
+    }
+
+    @Test
+    public final void verifyLimitAppliesToDecodedBody() throws IOException {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setMaxContentLength(1024 * 1024).build();
+
+        // when
+        try (CloseableHttpClient client = install(guard);
+                CloseableHttpResponse response = client.execute(new HttpGet(baseUri + "/compressed"))) {
+            final IOException result = assertThrows(IOException.class,
+                    () -> EntityUtils.toByteArray(response.getEntity()));
+
+            // then
+            assertEquals("Response body exceeds 1048576 bytes", result.getMessage());
+        }
+    }
+
+    @Test
+    public final void verifyWrappedProcessorRejectsUnexpectedContentType() {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("application/json").build();
+        final HttpProcessor processor = guard.wrap(HttpProcessorBuilder.create().build());
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContentType("Text/HTML");
+        entity.setContent(new ByteArrayInputStream(new byte[0]));
+        response.setEntity(entity);
+
+        // when
+        final HttpException result = assertThrows(HttpException.class,
+                () -> processor.process(response, new BasicHttpContext()));
+
+        // then
+        assertEquals("Unexpected content type: text/html", result.getMessage());
+    }
+
+    @Test
+    public final void verifyWrappedProcessorStopsReadingAtLimit() throws HttpException, IOException {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("application/*")
+                .setMaxContentLength(16).build();
+        final HttpProcessor processor = guard.wrap(HttpProcessorBuilder.create().build());
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final byte[] body = new byte[1024 * 1024];
+        final InputStream content = new ByteArrayInputStream(body);
+        response.setEntity(new InputStreamEntity(content, -1, ContentType.APPLICATION_JSON));
+        processor.process(response, new BasicHttpContext());
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        // when
+        assertThrows(IOException.class, () -> response.getEntity().writeTo(copy));
+
+        // then
+        assertTrue(copy.size() <= 16);
+        assertTrue(content.available() > 0);
+    }
+
+    @Test
+    public final void verifyResponseWithinLimitsIsUnchanged() throws HttpException, IOException {
+        // given
+        final ResponseGuard guard = ResponseGuard.custom().setAllowedContentTypes("*/*")
+                .setMaxContentLength(16).build();
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final byte[] body = "{\"ok\":true}".getBytes();
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body), -1, ContentType.APPLICATION_JSON));
+
+        // when
+        guard.process(response, new BasicHttpContext());
+
+        // then
+        assertArrayEquals(body, EntityUtils.toByteArray(response.getEntity()));
+    }
+
+    @Test
+    public final void verifyInvalidContentTypesAreRejected() {
+        // given
+        final ResponseGuard.Builder builder = ResponseGuard.custom();
+
+        // when / then
+        assertThrows(IllegalArgumentException.class, () -> builder.addAllowedContentType("image"));
+        assertThrows(IllegalArgumentException.class, () -> builder.addAllowedContentType("image/"));
+        assertThrows(IllegalArgumentException.class, () -> builder.addAllowedContentType("*/png"));
+        assertThrows(IllegalArgumentException.class, () -> builder.addAllowedContentType("text/html; charset=UTF-8"));
+        assertThrows(IllegalArgumentException.class, () -> builder.setMaxContentLength(-1));
+    }
+
+    protected CloseableHttpClient install(final ResponseGuard guard) {
+        final HttpClientBuilder builder = HttpClientBuilder.create();
+        guard.install(builder);
+        return builder.build();
+    }
+
+    protected void writeLargeBody(final OutputStream stream) {
+        final byte[] buffer = new byte[64 * 1024];
+        try (OutputStream closeable = stream) {
+            while (bytesWritten.get() < largeBodyLength) {
+                closeable.write(buffer);
+                bytesWritten.addAndGet(buffer.length);
+            }
+        } catch (final IOException ioe) {
+            // the client closed the connection
+        } finally {
+            responseFinished.countDown();
+        }
+    }
+
+    protected static byte[] compress(final byte[] bytes) throws IOException {
+        final ByteArrayOutputStream retval = new ByteArrayOutputStream();
+        try (OutputStream stream = new GZIPOutputStream(retval)) {
+            stream.write(bytes);
+        }
+        return retval.toByteArray();
+    }
+
+}